@@ -0,0 +1,138 @@
+package simpledb.buffer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import simpledb.file.Block;
+
+/**
+ * Time for a burst of independent clients, thousands of them against a
+ * 64-buffer pool, to each pin a block, do a little work while holding it,
+ * and unpin it. Most clients find no buffer unpinned and have to wait.
+ * <p>
+ * In blocking, every client is a thread of its own, started for the burst,
+ * that calls pin and waits in it until a buffer is handed over. The threads
+ * are virtual threads if the JDK has them and platform threads otherwise;
+ * {@link #CLIENT_THREADS} tells which. In async, the same clients are
+ * requests made with pinAsync by one driver thread per processor. Each
+ * client's work, and its unpin, is run on a pool of as many worker threads
+ * once its buffer arrives, as an asynchronous server would, so a waiting
+ * client costs a queued future instead of a thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncPinBenchmark {
+	// Work done by a client while it holds its buffer
+	private static final long HOLD_TOKENS = 200;
+	// Thread.startVirtualThread, if the JDK has virtual threads
+	private static final Method START_VIRTUAL = startVirtual();
+	/** The kind of thread each blocking client runs on. */
+	public static final String CLIENT_THREADS = START_VIRTUAL != null ? "virtual" : "platform";
+
+	@Param({ "64" })
+	int size;
+
+	@Param({ "2000", "10000" })
+	int clients;
+
+	private BufferMgr bm;
+	private Block[] blocks;
+	private int drivers;
+	private ExecutorService workers;
+
+	@Setup
+	public void setup() {
+		bm = BenchSupport.newPool(size, 1, "LRM");
+		blocks = new Block[clients];
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = new Block("data", i);
+		drivers = Runtime.getRuntime().availableProcessors();
+		workers = Executors.newFixedThreadPool(drivers);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		workers.shutdown();
+	}
+
+	@Benchmark
+	public void async() throws InterruptedException {
+		final Consumer<Buffer> work = new Consumer<Buffer>() {
+			public void accept(Buffer buff) {
+				Blackhole.consumeCPU(HOLD_TOKENS);
+				bm.unpin(buff);
+			}
+		};
+		final CompletableFuture<?>[] done = new CompletableFuture<?>[clients];
+		Thread[] threads = new Thread[drivers];
+		for (int d = 0; d < drivers; d++) {
+			final int first = d;
+			threads[d] = new Thread() {
+				public void run() {
+					for (int i = first; i < clients; i += drivers)
+						done[i] = bm.pinAsync(blocks[i]).thenAcceptAsync(work, workers);
+				}
+			};
+			threads[d].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		CompletableFuture.allOf(done).join();
+	}
+
+	@Benchmark
+	public void blocking() throws Exception {
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			final Block blk = blocks[i];
+			threads[i] = start(new Runnable() {
+				public void run() {
+					Buffer buff = bm.pin(blk);
+					Blackhole.consumeCPU(HOLD_TOKENS);
+					bm.unpin(buff);
+				}
+			});
+		}
+		for (Thread t : threads)
+			t.join();
+	}
+
+	private static Thread start(Runnable client) throws Exception {
+		if (START_VIRTUAL != null)
+			return (Thread) START_VIRTUAL.invoke(null, client);
+		Thread t = new Thread(client);
+		t.start();
+		return t;
+	}
+
+	private static Method startVirtual() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package simpledb.buffer;
+
+import simpledb.file.SimulatedFileMgr;
+import simpledb.server.SimpleDB;
+
+/**
+ * Sets up the system for the benchmarks. The file and log managers run on a
+ * {@link SimulatedFileMgr}, so the benchmarks measure the buffer manager
+ * rather than the disk.
+ */
+class BenchSupport {
+	private static boolean initialized = false;
+
+	/**
+	 * Installs the simulated file manager and the log manager, once per JVM.
+	 */
+	static synchronized void init() {
+		if (initialized)
+			return;
+		SimpleDB.initFileAndLogMgr(new SimulatedFileMgr("simpledb-bench"));
+		initialized = true;
+	}
+
+	/**
+	 * Creates a buffer manager for a benchmark.
+	 * 
+	 * @param size
+	 *            the number of buffers
+	 * @param partitions
+	 *            the number of partitions
+	 * @param policy
+	 *            the name of a {@link StandardPolicy}
+	 * @return the buffer manager
+	 */
+	static BufferMgr newPool(int size, int partitions, String policy) {
+		init();
+		return new BufferMgr(size, partitions, false, StandardPolicy.valueOf(policy));
+	}
+}
@@ -0,0 +1,82 @@
+package simpledb.buffer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simpledb.file.Block;
+
+/**
+ * Throughput of pin and unpin from many threads on one pool. Each thread pins
+ * blocks chosen at random from a set somewhat larger than the pool, so most
+ * pins are hits and some are misses.
+ * <p>
+ * Partitioning pays off only when the threads run at once, so run this on a
+ * machine with at least as many cores as the largest thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContendedPinBenchmark {
+	@Param({ "1024" })
+	int size;
+
+	@Param({ "1", "8", "32" })
+	int partitions;
+
+	private BufferMgr bm;
+	private Block[] blocks;
+
+	@Setup
+	public void setup() {
+		bm = BenchSupport.newPool(size, partitions, "LRM");
+		blocks = new Block[size + size / 4];
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = new Block("data", i);
+	}
+
+	private Buffer pinUnpin() {
+		Buffer buff = bm.pin(blocks[ThreadLocalRandom.current().nextInt(blocks.length)]);
+		bm.unpin(buff);
+		return buff;
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Buffer threads01() {
+		return pinUnpin();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Buffer threads04() {
+		return pinUnpin();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public Buffer threads16() {
+		return pinUnpin();
+	}
+
+	@Benchmark
+	@Threads(64)
+	public Buffer threads64() {
+		return pinUnpin();
+	}
+}
@@ -0,0 +1,69 @@
+package simpledb.buffer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simpledb.file.Block;
+
+/**
+ * The cost of committing a transaction's changes with flushAll, for pools of
+ * varying size in which a varying fraction of the buffers was modified by the
+ * committing transaction. The rest of the pool is dirty through other
+ * transactions, which flushAll must not have to visit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushAllBenchmark {
+	@Param({ "64", "1024", "16384" })
+	int size;
+
+	@Param({ "0.01", "0.1", "0.5" })
+	double dirtyFraction;
+
+	private BufferMgr bm;
+	private Block[] blocks;
+	private int txnum = 1;
+	private int lsn = 0;
+
+	@Setup
+	public void setup() {
+		bm = BenchSupport.newPool(size, 1, "LRM");
+		blocks = new Block[size];
+		for (int i = 0; i < size; i++)
+			blocks[i] = new Block("data", i);
+	}
+
+	// Dirties the committing transaction's share of the pool, and the rest
+	// of the pool through another transaction.
+	@Setup(Level.Invocation)
+	public void dirty() {
+		txnum++;
+		int mine = Math.max(1, (int) (size * dirtyFraction));
+		for (int i = 0; i < size; i++) {
+			Buffer buff = bm.pin(blocks[i]);
+			buff.setInt(0, i, i < mine ? txnum : 0, lsn++);
+			bm.unpin(buff);
+		}
+	}
+
+	@Benchmark
+	public void flushAll() {
+		bm.flushAll(txnum);
+	}
+}
@@ -0,0 +1,100 @@
+package simpledb.buffer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simpledb.log.LogMgr;
+import simpledb.server.SimpleDB;
+
+/**
+ * Commits per second, and log forces per second, from 1, 4, 16 and 64 writer
+ * threads. Each commit appends a log record and forces the log up to it,
+ * either directly through {@link LogMgr#flush(int)} or through the
+ * {@link LogForcer}, which lets concurrent commits share a force. Unlike the
+ * other benchmarks this one runs on a real database directory, since the
+ * forces are what it measures. The <code>forces</code> counter is the rate of
+ * log writes; run with <code>-bm sample -tu us</code> for the distribution of
+ * commit latency instead of the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogForceBenchmark {
+	@Param({ "true", "false" })
+	boolean grouped;
+
+	private LogMgr log;
+	private LogForcer forcer;
+
+	@Setup
+	public void setup() {
+		SimpleDB.initFileAndLogMgr("simpledb-logbench");
+		log = SimpleDB.logMgr();
+		forcer = SimpleDB.logForcer();
+	}
+
+	/**
+	 * The forces made by one thread.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Forces {
+		public long forces;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			forces = 0;
+		}
+	}
+
+	private int commit(Forces counter) {
+		int lsn = log.append(new Object[] { "commit", (int) Thread.currentThread().getId() });
+		if (!grouped) {
+			log.flush(lsn);
+			counter.forces++;
+		} else if (forcer.force(lsn))
+			counter.forces++;
+		return lsn;
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int threads01(Forces counter) {
+		return commit(counter);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int threads04(Forces counter) {
+		return commit(counter);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public int threads16(Forces counter) {
+		return commit(counter);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public int threads64(Forces counter) {
+		return commit(counter);
+	}
+}
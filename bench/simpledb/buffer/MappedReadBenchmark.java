@@ -0,0 +1,75 @@
+package simpledb.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simpledb.file.Block;
+import simpledb.file.BlockIO;
+import simpledb.file.Page;
+import simpledb.server.SimpleDB;
+
+/**
+ * Misses on a file read through memory-mapped regions (see
+ * {@link BufferMgr#mapFile}) against the same misses copying each block into
+ * a page. The pool is much smaller than the file, so every pin replaces a
+ * clean buffer. Like <code>LogForceBenchmark</code> this one runs on a real
+ * database directory, since the mapping needs a file on disk; after the
+ * first pass the file is in the operating system's cache, so what is
+ * measured is the copy, not the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappedReadBenchmark {
+	private static final String FILENAME = "mapbench";
+
+	@Param({ "4096" })
+	int fileBlocks;
+
+	@Param({ "true", "false" })
+	boolean mapped;
+
+	private BufferMgr bm;
+	private Block[] blocks;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		SimpleDB.initFileAndLogMgr("simpledb-mapbench");
+		blocks = new Block[fileBlocks];
+		ByteBuffer bb = ByteBuffer.allocateDirect(Page.BLOCK_SIZE);
+		for (int i = 0; i < fileBlocks; i++) {
+			blocks[i] = new Block(FILENAME, i);
+			bb.clear();
+			bb.putInt(0, i);
+			BlockIO.write(blocks[i], bb);
+		}
+		bm = new BufferMgr(64);
+		if (mapped)
+			bm.mapFile(FILENAME);
+	}
+
+	@Benchmark
+	public int pinMiss() {
+		Buffer buff = bm.pin(blocks[next]);
+		next = (next + 1) % blocks.length;
+		int value = buff.getInt(0);
+		bm.unpin(buff);
+		return value;
+	}
+}
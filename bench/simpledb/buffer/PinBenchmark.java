@@ -0,0 +1,102 @@
+package simpledb.buffer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simpledb.file.Block;
+import simpledb.file.Page;
+
+/**
+ * Single-threaded cost of pinning and unpinning a block: a hit, by block
+ * reference and by block key, a miss whose victim is clean, a miss whose
+ * victim is dirty and must be written first, and the pin of a new block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PinBenchmark {
+	@Param({ "64", "1024", "16384" })
+	int size;
+
+	@Param({ "LRM", "LRU", "CLOCK", "ARC" })
+	String policy;
+
+	private BufferMgr bm;
+	private Block[] resident;
+	private long[] residentKeys;
+	private Block[] cycle;
+	private PageFormatter fmtr;
+	private int next = 0;
+	private int lsn = 0;
+
+	@Setup
+	public void setup() {
+		bm = BenchSupport.newPool(size, 1, policy);
+		// Half the pool is pinned once so that it stays resident
+		resident = new Block[size / 2];
+		residentKeys = new long[size / 2];
+		for (int i = 0; i < resident.length; i++) {
+			resident[i] = new Block("hot", i);
+			residentKeys[i] = FileRegistry.key(resident[i]);
+			bm.unpin(bm.pin(resident[i]));
+		}
+		// Cycling over twice the pool makes every pin a miss
+		cycle = new Block[size * 2];
+		for (int i = 0; i < cycle.length; i++)
+			cycle[i] = new Block("cold", i);
+		fmtr = new PageFormatter() {
+			public void format(Page p) {
+			}
+		};
+	}
+
+	@Benchmark
+	public Buffer pinHit() {
+		Buffer buff = bm.pin(resident[next++ % resident.length]);
+		bm.unpin(buff);
+		return buff;
+	}
+
+	@Benchmark
+	public Buffer pinHitByKey() {
+		Buffer buff = bm.pin(residentKeys[next++ % residentKeys.length]);
+		bm.unpin(buff);
+		return buff;
+	}
+
+	@Benchmark
+	public Buffer pinMissCleanVictim() {
+		Buffer buff = bm.pin(cycle[next++ % cycle.length]);
+		bm.unpin(buff);
+		return buff;
+	}
+
+	@Benchmark
+	public Buffer pinMissDirtyVictim() {
+		Buffer buff = bm.pin(cycle[next++ % cycle.length]);
+		buff.setInt(0, next, 1, lsn++);
+		bm.unpin(buff);
+		return buff;
+	}
+
+	@Benchmark
+	public Buffer pinNew() {
+		Buffer buff = bm.pinNew("new", fmtr);
+		bm.unpin(buff);
+		return buff;
+	}
+}
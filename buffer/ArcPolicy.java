@@ -0,0 +1,198 @@
+package simpledb.buffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import simpledb.file.Block;
+
+/**
+ * An adaptive, scan-resistant policy modelled on ARC (Adaptive Replacement
+ * Cache, Megiddo and Modha). Resident blocks are split into those pinned only
+ * once since they were read (the recency tier, T1) and those pinned again
+ * (the frequency tier, T2). When a block is evicted its identity is kept in a
+ * ghost list for its tier (B1 or B2); no page is kept for it. A miss on a
+ * ghost shows that its tier was given too little room, so the target size of
+ * T1 is moved towards that tier. Victims are taken from the unpinned end of
+ * T1 while T1 is larger than its target, and otherwise from T2.
+ * <p>
+ * A scan touches each block once, so its blocks stay in T1 and are replaced
+ * before the blocks of the working set in T2. The target adapts by itself, so
+ * the policy needs no tuning. Blocks that were read ahead and never pinned are
+ * not remembered.
+ */
+class ArcPolicy implements ReplacementPolicy {
+	private static final int IN_T1 = 1;
+	private static final int IN_T2 = 2;
+
+	// The tier of a resident buffer (see Buffer.policyState).
+	private enum Tier {
+		RECENT, FREQUENT
+	}
+
+	// Unpinned buffers of each tier, least recently unpinned first.
+	private BufferList t1 = new BufferList();
+	private BufferList t2 = new BufferList();
+	// Resident buffers of each tier, pinned or not.
+	private int t1Size = 0;
+	private int t2Size = 0;
+	// Recently evicted blocks of each tier, oldest first.
+	private LinkedHashSet<Block> b1 = new LinkedHashSet<Block>();
+	private LinkedHashSet<Block> b2 = new LinkedHashSet<Block>();
+	// The number of resident blocks, learned as the partition fills up.
+	private int capacity = 0;
+	// The target size of T1.
+	private int target = 0;
+
+	public void accessed(Buffer buff) {
+		Object tier = buff.policyState;
+		if (tier == Tier.RECENT && !buff.prefetched) {
+			// Second pin: the block moves to the frequency tier
+			buff.policyState = Tier.FREQUENT;
+			t1Size--;
+			t2Size++;
+		} else if (tier == null || buff.prefetched) {
+			if (tier == Tier.RECENT)
+				t1Size--;
+			admit(buff);
+		}
+	}
+
+	public void pinned(Buffer buff) {
+		remove(buff);
+	}
+
+	public void unpinned(Buffer buff) {
+		if (buff.policyState == null)
+			admit(buff);
+		if (buff.policyState == Tier.FREQUENT) {
+			t2.addLast(buff);
+			buff.queue = IN_T2;
+		} else {
+			t1.addLast(buff);
+			buff.queue = IN_T1;
+		}
+	}
+
+	public void dirtied(Buffer buff) {
+	}
+
+	public void flushed(Buffer buff) {
+	}
+
+	public void evicted(Buffer buff) {
+		Object tier = forget(buff);
+		if (tier == Tier.RECENT && !buff.prefetched)
+			remember(b1, buff.block());
+		else if (tier == Tier.FREQUENT)
+			remember(b2, buff.block());
+	}
+
+	public void detached(Buffer buff) {
+		forget(buff);
+	}
+
+	public void prefetched(Buffer buff) {
+		remove(buff);
+		buff.policyState = Tier.RECENT;
+		t1Size++;
+		t1.addFirst(buff);
+		buff.queue = IN_T1;
+	}
+
+	public Buffer chooseVictim() {
+		if (t1.first() != null && (t1Size > target || t2.first() == null))
+			return t1.first();
+		return t2.first();
+	}
+
+	public Buffer chooseDirty(int limit) {
+		Buffer buff = find(preferred(), limit, true);
+		return buff != null ? buff : find(other(), limit, true);
+	}
+
+	public Buffer chooseClean(int limit) {
+		Buffer buff = find(preferred(), limit, false);
+		return buff != null ? buff : find(other(), limit, false);
+	}
+
+	// Takes a buffer out of its tier, and returns the tier it was in.
+	private Object forget(Buffer buff) {
+		remove(buff);
+		Object tier = buff.policyState;
+		buff.policyState = null;
+		if (tier == Tier.RECENT)
+			t1Size--;
+		else if (tier == Tier.FREQUENT)
+			t2Size--;
+		return tier;
+	}
+
+	// Places a block that has just been read in its tier, adapting the target
+	// if the block was evicted recently.
+	private void admit(Buffer buff) {
+		Block blk = buff.block();
+		// The target moves by the ratio of the ghost lists as they stood when
+		// the miss happened, so the ghost is dropped only after adapting
+		if (blk != null && b1.contains(blk)) {
+			target = Math.min(capacity, target + Math.max(b2.size() / b1.size(), 1));
+			b1.remove(blk);
+			buff.policyState = Tier.FREQUENT;
+			t2Size++;
+		} else if (blk != null && b2.contains(blk)) {
+			target = Math.max(0, target - Math.max(b1.size() / b2.size(), 1));
+			b2.remove(blk);
+			buff.policyState = Tier.FREQUENT;
+			t2Size++;
+		} else {
+			buff.policyState = Tier.RECENT;
+			t1Size++;
+		}
+		capacity = Math.max(capacity, t1Size + t2Size);
+	}
+
+	// Adds an evicted block to a ghost list, keeping T1 plus B1 within the
+	// capacity and all four lists within twice the capacity.
+	private void remember(LinkedHashSet<Block> ghosts, Block blk) {
+		if (blk == null)
+			return;
+		ghosts.add(blk);
+		if (t1Size + b1.size() > capacity)
+			dropOldest(b1);
+		while (b1.size() + b2.size() > capacity)
+			dropOldest(b2.isEmpty() ? b1 : b2);
+	}
+
+	private static void dropOldest(LinkedHashSet<Block> ghosts) {
+		Iterator<Block> iter = ghosts.iterator();
+		if (iter.hasNext()) {
+			iter.next();
+			iter.remove();
+		}
+	}
+
+	// The list that chooseVictim takes from first, and the other one.
+	private BufferList preferred() {
+		return t1Size > target ? t1 : t2;
+	}
+
+	private BufferList other() {
+		return t1Size > target ? t2 : t1;
+	}
+
+	private static Buffer find(BufferList list, int limit, boolean dirty) {
+		Buffer buff = list.first();
+		for (int i = 0; buff != null && i < limit; i++, buff = buff.nextUnpinned) {
+			if (dirty ? buff.modifiedBy() >= 0 : (!buff.prefetched && buff.modifiedBy() < 0))
+				return buff;
+		}
+		return null;
+	}
+
+	private void remove(Buffer buff) {
+		if (buff.queue == IN_T1)
+			t1.remove(buff);
+		else if (buff.queue == IN_T2)
+			t2.remove(buff);
+		buff.queue = Buffer.NOT_QUEUED;
+	}
+}
@@ -1,13 +1,19 @@
 package simpledb.buffer;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 import simpledb.file.Block;
 import simpledb.file.FileMgr;
+import simpledb.file.Page;
 
 /**
  * Manages the pinning and unpinning of buffers to blocks.
@@ -16,13 +22,37 @@ import simpledb.file.FileMgr;
  * 
  */
 public class BasicBufferMgr {
+	// CSC-540 Buffer Management How many of the next replacement candidates
+	// a prefetch, or the page cleaner, looks at for a buffer it may use.
+	private static final int CANDIDATE_SEARCH = 64;
+
 	public Buffer[] bufferpool;
+	// CSC-540 Buffer Management Number of buffers currently owned by this
+	// manager. Buffers can move between the partitions of a BufferMgr, so
+	// only the first poolSize slots of bufferpool are in use.
+	private int poolSize;
 	private int numAvailable;
 	// CSC-540 Buffer Management Map to store block buffer mapping(Task1)
 	public HashMap<Block, Buffer> bufferPoolMap;
+	// CSC-540 Buffer Management The same mapping keyed by block key (see
+	// FileRegistry), which serves all lookups. bufferPoolMap is kept for
+	// iteration and for callers that inspect the pool.
+	private BlockTable blockTable;
 	// CSC-540 Buffer Management List to store the current free buffers(No block
 	// allocated yet).
 	public LinkedList<Buffer> freeBuffers;
+	// CSC-540 Buffer Management Chooses which unpinned buffer is replaced.
+	private ReplacementPolicy policy;
+	// CSC-540 Buffer Management Event counters, shared by all partitions.
+	private BufferMetrics metrics;
+	// CSC-540 Buffer Management Pool-wide state, also reached by the buffers
+	// through the frame table.
+	private DirtyBufferTable dirtyTable;
+	private FrameTable frames;
+	private MappedFiles mappedFiles;
+	// CSC-540 Buffer Management The partition's lock, which guards all of
+	// the above. No I/O is done while it is held.
+	private final ReentrantLock lock = new ReentrantLock();
 
 	/**
 	 * Creates a buffer manager having the specified number of buffer slots.
@@ -37,22 +67,79 @@ public class BasicBufferMgr {
 	 *            the number of buffer slots to allocate
 	 */
 	BasicBufferMgr(int numbuffs) {
+		this(numbuffs, 0, new FrameTable(new DirtyBufferTable(), new MappedFiles(), new BufferMetrics()), false,
+				StandardPolicy.LRM.newPolicy());
+	}
+
+	/**
+	 * Creates a buffer manager whose buffers are numbered starting at the
+	 * specified index. This is used when a {@link BufferMgr} is split into
+	 * several partitions, so that buffer ids stay unique across the pool.
+	 * 
+	 * @param numbuffs
+	 *            the number of buffer slots to allocate
+	 * @param firstIndex
+	 *            the id of the first buffer
+	 * @param frames
+	 *            the table of buffer descriptors and pool-wide state, shared
+	 *            by all partitions
+	 * @param offHeap
+	 *            whether the pages are held in an off-heap {@link PageArena}
+	 * @param policy
+	 *            the replacement policy, used by this manager only
+	 */
+	BasicBufferMgr(int numbuffs, int firstIndex, FrameTable frames, boolean offHeap, ReplacementPolicy policy) {
+		this.policy = policy;
+		this.metrics = frames.metrics;
+		this.dirtyTable = frames.dirtyTable;
+		this.frames = frames;
+		this.mappedFiles = frames.mappedFiles;
+		PageArena arena = offHeap ? new PageArena(numbuffs) : null;
 		bufferpool = new Buffer[numbuffs];
+		poolSize = numbuffs;
 		numAvailable = numbuffs;
 		// initialize hash Map
 		bufferPoolMap = new HashMap<Block, Buffer>(numbuffs);
+		blockTable = new BlockTable(numbuffs);
 		// initialize free buffers.
 		freeBuffers = new LinkedList<Buffer>();
 		for (int i = 0; i < numbuffs; i++) {
-			bufferpool[i] = new Buffer(i);
+			bufferpool[i] = newBuffer(firstIndex + i, arena, i);
+			bufferpool[i].slot = i;
 			freeBuffers.add(bufferpool[i]); // initialize all to be free buffers
 		}
 	}
 
+	/**
+	 * Creates a buffer in this manager's pool. The buffer belongs to no
+	 * partition until it is adopted (see {@link #adopt(Buffer)}). Its page is
+	 * always held in a byte buffer, on the heap if no arena is given, so that
+	 * runs of pages can be written and read together.
+	 * 
+	 * @param index
+	 *            the buffer id, unique in the pool
+	 * @param arena
+	 *            the off-heap arena to hold the page, or null
+	 * @param page
+	 *            the index of the page within the arena
+	 * @return the new buffer
+	 */
+	Buffer newBuffer(int index, PageArena arena, int page) {
+		ByteBuffer frame;
+		if (arena == null)
+			frame = ByteBuffer.allocate(Page.BLOCK_SIZE);
+		else {
+			frame = arena.frame(page);
+			frames.place(index, arena, page);
+		}
+		return new Buffer(index, frame, frames);
+	}
+
 	// display the contents of all the buffers.
 	public String toString() {
 		String buffInfo = new String();
-		for (Buffer buff : bufferpool) {
+		for (int i = 0; i < poolSize; i++) {
+			Buffer buff = bufferpool[i];
 			buffInfo += buff.toString() + System.getProperty("line.separator"); // Use
 																				// system
 																				// newline
@@ -61,20 +148,55 @@ public class BasicBufferMgr {
 	}
 
 	/**
-	 * Flushes the dirty buffers modified by the specified transaction.
+	 * Flushes the specified buffer if it still belongs to this manager and is
+	 * dirty due to a modification by the specified transaction. The log is
+	 * forced only if the buffer's LSN is beyond the one already forced.
+	 * <p>
+	 * The lock of this manager is held only to look at the buffer. The page
+	 * is written under the buffer's own lock, as a run of pages is (see
+	 * {@link Buffer#flushRun(Block[], Buffer[], int, int)}), so a pin that
+	 * chooses the buffer meanwhile waits for the write; the policy is then
+	 * told under this manager's lock if the buffer is still clean.
 	 * 
+	 * @param buff
+	 *            the buffer
 	 * @param txnum
 	 *            the transaction's id number
+	 * @param forcedLsn
+	 *            the LSN up to which the log has been forced
 	 */
-	synchronized void flushAll(int txnum) {
-		Buffer buff1 = null;
-				Iterator<Block> iterator1 = bufferPoolMap.keySet().iterator();
-		while (iterator1.hasNext()) {
-			Block bkey = iterator1.next();
-			buff1 = bufferPoolMap.get(bkey);
-				//for (Buffer buff : bufferpool)
-			if (buff1.isModifiedBy(txnum))
-				buff1.flush();
+	void flush(Buffer buff, int txnum, int forcedLsn) {
+		Block blk;
+		lock.lock();
+		try {
+			if (!owns(buff) || !buff.isModifiedBy(txnum))
+				return;
+			blk = buff.block();
+		} finally {
+			lock.unlock();
+		}
+		if (buff.flush(blk, txnum, forcedLsn))
+			flushed(buff, blk);
+	}
+
+	/**
+	 * Tells the replacement policy that a buffer of this manager has been
+	 * written back without its lock held (see
+	 * {@link Buffer#flushRun(Block[], Buffer[], int, int)}), if the buffer is
+	 * still unpinned, clean and assigned to the block.
+	 * 
+	 * @param buff
+	 *            the buffer
+	 * @param blk
+	 *            the block it was written to
+	 */
+	void flushed(Buffer buff, Block blk) {
+		lock.lock();
+		try {
+			if (owns(buff) && !buff.isPinned() && buff.modifiedBy() < 0 && buff.block() != null && buff.block().equals(blk))
+				policy.flushed(buff);
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -88,32 +210,139 @@ public class BasicBufferMgr {
 	 *            a reference to a disk block
 	 * @return the pinned buffer
 	 */
-	synchronized Buffer pin(Block blk) {
-		Buffer buff = findExistingBuffer(blk);
-		Block lastBlock = null;
-		if (buff == null) {
-			buff = chooseUnpinnedBuffer();
-			if (buff == null)
-				return null;
-			lastBlock = buff.block();
-			// if last block not null remove it from hashMap
-			if (lastBlock != null)
-				bufferPoolMap.remove(lastBlock);
-			// Allocating a new block to the buffer
-			bufferPoolMap.put(blk, buff);
-			buff.assignToBlock(blk);
+	Buffer pin(Block blk) {
+		return pin(FileRegistry.key(blk), blk, null);
+	}
+
+	/**
+	 * Pins a buffer to the block with the specified key (see
+	 * {@link FileRegistry}). If the block is in the pool, nothing is
+	 * allocated; otherwise the block reference is created if none is given.
+	 * <p>
+	 * The lock of this manager is held only to look the block up and to
+	 * choose and map a buffer for it. The block is then read with the buffer
+	 * marked as loading, and other threads that pin the block meanwhile wait
+	 * for that one read rather than read it again. If the buffer chosen is
+	 * dirty it is written back first, also outside the lock, and chosen again
+	 * only if nobody has used it meanwhile.
+	 * 
+	 * @param key
+	 *            the key of a disk block
+	 * @param blk
+	 *            a reference to the same block, or null
+	 * @return the pinned buffer, or null if there are no available buffers
+	 */
+	Buffer pin(long key, Block blk) {
+		return pin(key, blk, null);
+	}
+
+	/**
+	 * Pins the buffer assigned to the specified block, if there is one,
+	 * waiting for the block to be read if that is in progress. Returns null,
+	 * without choosing a buffer, if the block is not in the pool.
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @return the pinned buffer, or null
+	 */
+	Buffer pinIfPresent(Block blk) {
+		long key = FileRegistry.key(blk);
+		for (;;) {
+			Buffer buff;
+			lock.lock();
+			try {
+				buff = findExistingBuffer(key);
+				if (buff == null)
+					return null;
+				if (!buff.isLoading()) {
+					metrics.pinned(true);
+					EventTracer.trace(EventTracer.PIN_HIT, blk, buff, -1, -1);
+					return pinBuffer(buff);
+				}
+			} finally {
+				lock.unlock();
+			}
+			buff.awaitLoaded();
 		}
-		if (!buff.isPinned()) {
-			numAvailable--;
+	}
+
+	/**
+	 * Takes ownership of a buffer given up by a partition, and pins it to the
+	 * specified block, marked as loading as in {@link #pin(long, Block)}, if
+	 * the block is not in this manager. The caller then reads the block into
+	 * the buffer without the lock, and ends the loading with
+	 * {@link #loaded(Buffer, boolean)}; other threads that pin the block
+	 * meanwhile wait for that read. If the block is in the pool, its buffer
+	 * is pinned instead and the donated one becomes a free buffer.
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @param donated
+	 *            an unpinned buffer that belongs to no partition
+	 * @return the donated buffer, pinned and loading; the buffer already
+	 *         assigned to the block, pinned; or null if another thread is
+	 *         reading the block
+	 */
+	Buffer adoptLoading(Block blk, Buffer donated) {
+		long key = FileRegistry.key(blk);
+		lock.lock();
+		try {
+			adopt(donated);
+			Buffer buff = findExistingBuffer(key);
+			if (buff == null) {
+				freeBuffers.remove(donated);
+				startLoading(key, blk, donated);
+				return donated;
+			}
+			if (!buff.isLoading()) {
+				metrics.pinned(true);
+				EventTracer.trace(EventTracer.PIN_HIT, blk, buff, -1, -1);
+				return pinBuffer(buff);
+			}
+			return null;
+		} finally {
+			lock.unlock();
 		}
-		buff.pin();
-		return buff;
+	}
+
+	/**
+	 * Ends the loading of a buffer pinned by
+	 * {@link #adoptLoading(Block, Buffer)}, and wakes the threads waiting for
+	 * its block. If the block could not be read, the buffer is first unmapped
+	 * and freed, so that they read the block themselves.
+	 * 
+	 * @param buff
+	 *            the loading buffer
+	 * @param ok
+	 *            whether the block was read into the buffer
+	 */
+	void loaded(Buffer buff, boolean ok) {
+		if (!ok) {
+			lock.lock();
+			try {
+				unmap(buff);
+				policy.detached(buff);
+				buff.unpin();
+				numAvailable++;
+				buff.loaded(false);
+				freeBuffers.add(buff);
+			} finally {
+				lock.unlock();
+			}
+		} else
+			buff.loaded(true);
 	}
 
 	/**
 	 * Allocates a new block in the specified file, and pins a buffer to it.
 	 * Returns null (without allocating the block) if there are no available
 	 * buffers.
+	 * <p>
+	 * As in {@link #pin(long, Block)}, the lock of this manager is held only
+	 * to choose the buffer and to map the new block to it. A dirty victim is
+	 * written back without the lock, and used only if nobody has used it
+	 * meanwhile; the block is then appended and formatted without the lock
+	 * too, while the buffer belongs to no block.
 	 * 
 	 * @param filename
 	 *            the name of the file
@@ -121,21 +350,8 @@ public class BasicBufferMgr {
 	 *            a pageformatter object, used to format the new block
 	 * @return the pinned buffer
 	 */
-	synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
-		Buffer buff = chooseUnpinnedBuffer();
-		Block lastBlock = null;
-		if (buff == null)
-			return null;
-		lastBlock = buff.block();
-		// if last block not null remove it from hashMap
-		if (lastBlock != null)
-			bufferPoolMap.remove(lastBlock);
-		// Allocating a new block to the buffer
-		buff.assignToNew(filename, fmtr);
-		bufferPoolMap.put(buff.block(), buff);
-		numAvailable--;
-		buff.pin();
-		return buff;
+	Buffer pinNew(String filename, PageFormatter fmtr) {
+		return pinNew(filename, fmtr, null);
 	}
 
 	/**
@@ -143,11 +359,476 @@ public class BasicBufferMgr {
 	 * 
 	 * @param buff
 	 *            the buffer to be unpinned
+	 * @return true if the buffer is no longer pinned
+	 */
+	boolean unpin(Buffer buff) {
+		lock.lock();
+		try {
+			EventTracer.trace(EventTracer.UNPIN, buff.block(), buff, -1, -1);
+			buff.unpin();
+			if (!buff.isPinned()) {
+				numAvailable++;
+				if (buff.modifiedBy() >= 0)
+					policy.dirtied(buff);
+				policy.unpinned(buff);
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Pins a buffer to the specified block, first taking ownership of a buffer
+	 * given up by another partition. The donated buffer must have been
+	 * obtained from {@link #surrender()}.
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @param donated
+	 *            an unpinned buffer that belongs to no partition
+	 * @return the pinned buffer, or null if there are no available buffers
+	 */
+	Buffer pin(Block blk, Buffer donated) {
+		return pin(FileRegistry.key(blk), blk, donated);
+	}
+
+	/**
+	 * Pins a buffer to the block with the specified key, first taking
+	 * ownership of a buffer given up by another partition.
+	 * 
+	 * @param key
+	 *            the key of a disk block
+	 * @param blk
+	 *            a reference to the same block, or null
+	 * @param donated
+	 *            an unpinned buffer that belongs to no partition, or null
+	 * @return the pinned buffer, or null if there are no available buffers
+	 */
+	Buffer pin(long key, Block blk, Buffer donated) {
+		for (;;) {
+			Buffer buff;
+			Buffer victim = null;
+			lock.lock();
+			try {
+				if (donated != null) {
+					adopt(donated);
+					donated = null;
+				}
+				buff = findExistingBuffer(key);
+				if (buff == null) {
+					buff = chooseUnpinnedBuffer();
+					if (buff == null)
+						return null;
+					if (buff.block() != null && buff.modifiedBy() >= 0) {
+						hold(buff);
+						victim = buff;
+						buff = null;
+					} else {
+						if (blk == null)
+							blk = FileRegistry.block(key);
+						evict(buff, false);
+						startLoading(key, blk, buff);
+					}
+				} else if (!buff.isLoading()) {
+					metrics.pinned(true);
+					EventTracer.trace(EventTracer.PIN_HIT, buff.block(), buff, -1, -1);
+					return pinBuffer(buff);
+				} else
+					buff = null;
+			} finally {
+				lock.unlock();
+			}
+			if (victim != null) {
+				victim.flush();
+				if (blk == null)
+					blk = FileRegistry.block(key);
+				if (replace(key, blk, victim))
+					buff = victim;
+			}
+			if (buff != null) {
+				load(buff);
+				return buff;
+			}
+			// Another thread is reading the block; wait for it and look again
+			Buffer loading;
+			lock.lock();
+			try {
+				loading = findExistingBuffer(key);
+			} finally {
+				lock.unlock();
+			}
+			if (loading != null)
+				loading.awaitLoaded();
+		}
+	}
+
+	/**
+	 * Allocates a new block in the specified file, and pins a buffer to it,
+	 * first taking ownership of a buffer given up by another partition.
+	 * 
+	 * @param filename
+	 *            the name of the file
+	 * @param fmtr
+	 *            a pageformatter object, used to format the new block
+	 * @param donated
+	 *            an unpinned buffer that belongs to no partition, or null
+	 * @return the pinned buffer, or null if there are no available buffers
+	 */
+	Buffer pinNew(String filename, PageFormatter fmtr, Buffer donated) {
+		Buffer buff = null;
+		while (buff == null) {
+			Buffer victim = null;
+			lock.lock();
+			try {
+				if (donated != null) {
+					adopt(donated);
+					donated = null;
+				}
+				buff = chooseUnpinnedBuffer();
+				if (buff == null)
+					return null;
+				if (buff.block() != null && buff.modifiedBy() >= 0) {
+					hold(buff);
+					victim = buff;
+					buff = null;
+				} else {
+					// Held, but known to no block and to no policy
+					evict(buff, false);
+					numAvailable--;
+					buff.pinForCleaning();
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (victim != null) {
+				victim.flush();
+				lock.lock();
+				try {
+					if (isCleanedHold(victim)) {
+						evict(victim, true);
+						buff = victim;
+					} else
+						release(victim);
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+		try {
+			buff.assignToNew(filename, fmtr);
+		} catch (RuntimeException e) {
+			lock.lock();
+			try {
+				buff.unassign();
+				freeBuffers.add(buff);
+				numAvailable++;
+			} finally {
+				lock.unlock();
+			}
+			throw e;
+		}
+		lock.lock();
+		try {
+			metrics.newBlocks.increment();
+			map(FileRegistry.key(buff.block()), buff.block(), buff);
+			EventTracer.trace(EventTracer.PIN_NEW, buff.block(), buff, -1, -1);
+			policy.accessed(buff);
+			buff.pin();
+		} finally {
+			lock.unlock();
+		}
+		return buff;
+	}
+
+	/**
+	 * Takes ownership of an unpinned buffer given up by a partition, and makes
+	 * it a free buffer of this manager.
+	 * 
+	 * @param donated
+	 *            an unpinned buffer that belongs to no partition
 	 */
-	synchronized void unpin(Buffer buff) {
-		buff.unpin();
-		if (!buff.isPinned())
+	void adopt(Buffer donated) {
+		lock.lock();
+		try {
+			addFrame(donated);
+			freeBuffers.add(donated);
 			numAvailable++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives up one unpinned buffer so that another partition can use it. The
+	 * buffer is written back if it is dirty and then removed from this
+	 * manager. The write is done without this manager's lock, holding the
+	 * buffer, and the buffer is given up only if nobody has used it
+	 * meanwhile; otherwise another is chosen. Returns null if every buffer
+	 * is pinned.
+	 * 
+	 * @return a buffer that belongs to no partition, or null
+	 */
+	Buffer surrender() {
+		for (;;) {
+			Buffer victim;
+			lock.lock();
+			try {
+				Buffer buff = chooseUnpinnedBuffer();
+				if (buff == null)
+					return null;
+				if (buff.block() == null || buff.modifiedBy() < 0) {
+					evict(buff);
+					numAvailable--;
+					retire(buff);
+					return buff;
+				}
+				hold(buff);
+				victim = buff;
+			} finally {
+				lock.unlock();
+			}
+			victim.flush();
+			lock.lock();
+			try {
+				if (isCleanedHold(victim)) {
+					evict(victim, true);
+					retire(victim);
+					return victim;
+				}
+				release(victim);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Gives up the specified buffer, which has just been unpinned, so that it
+	 * can be handed to a waiting thread. A dirty buffer is written back first,
+	 * as by {@link #surrender()}. Returns null if the buffer has been pinned
+	 * again or no longer belongs to this manager.
+	 * 
+	 * @param buff
+	 *            the buffer to give up
+	 * @return the buffer, now belonging to no partition, or null
+	 */
+	Buffer surrender(Buffer buff) {
+		for (;;) {
+			lock.lock();
+			try {
+				if (buff.isPinned() || !owns(buff))
+					return null;
+				// A buffer with no block is on the free list
+				if (buff.block() == null || buff.modifiedBy() < 0) {
+					if (buff.block() != null)
+						evict(buff);
+					else
+						freeBuffers.remove(buff);
+					numAvailable--;
+					retire(buff);
+					return buff;
+				}
+				hold(buff);
+			} finally {
+				lock.unlock();
+			}
+			buff.flush();
+			lock.lock();
+			try {
+				if (isCleanedHold(buff)) {
+					evict(buff, true);
+					retire(buff);
+					return buff;
+				}
+				release(buff);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Removes a pinned buffer from this manager, so that it can be handed to
+	 * the partition that owns its block (see {@link #adoptPinned(Buffer)}).
+	 * 
+	 * @param buff
+	 *            the pinned buffer
+	 */
+	void detachPinned(Buffer buff) {
+		lock.lock();
+		try {
+			if (buff.blockKey >= 0 && blockTable.get(buff.blockKey) == buff)
+				unmap(buff);
+			policy.detached(buff);
+			removeFrame(buff);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes ownership of a pinned buffer detached from another partition and
+	 * maps its block. If this manager already holds the block, the existing
+	 * buffer is pinned instead and the adopted one becomes a free buffer.
+	 * 
+	 * @param buff
+	 *            the pinned buffer
+	 * @return the buffer now pinned to the block, or null if there are no
+	 *         available buffers
+	 */
+	Buffer adoptPinned(Buffer buff) {
+		Block blk = buff.block();
+		long key = FileRegistry.key(blk);
+		lock.lock();
+		try {
+			addFrame(buff);
+			if (findExistingBuffer(key) == null) {
+				map(key, blk, buff);
+				return buff;
+			}
+			buff.unassign();
+			freeBuffers.add(buff);
+			numAvailable++;
+		} finally {
+			lock.unlock();
+		}
+		return pin(key, blk, null);
+	}
+
+	/**
+	 * Pins an unpinned dirty buffer on behalf of the page cleaner, so that it
+	 * can be written back without holding this manager's lock. The replacement
+	 * policy picks the buffer from among those it would replace soonest (under
+	 * LRM, the one with the lowest LSN). The pin does not count as a read of
+	 * the buffer. Returns null if no such buffer is dirty.
+	 * 
+	 * @return the pinned dirty buffer, or null
+	 */
+	Buffer pinForCleaning() {
+		lock.lock();
+		try {
+			Buffer buff = policy.chooseDirty(CANDIDATE_SEARCH);
+			if (buff == null)
+				return null;
+			policy.pinned(buff);
+			numAvailable--;
+			buff.pinForCleaning();
+			return buff;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the specified block into an unpinned buffer, unless it is in the
+	 * pool already. Only a free buffer, or a clean buffer that the replacement
+	 * policy would replace soon, is used, so a prefetch never writes a page and
+	 * never evicts a recently used one. The policy is told that the block was
+	 * read ahead, so it is among the first to be replaced if the block is not
+	 * pinned soon.
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @return false if no buffer could be used
+	 */
+	boolean prefetch(Block blk) {
+		return readIn(blk, true);
+	}
+
+	/**
+	 * Reads the specified block into an unpinned buffer, choosing the buffer
+	 * as {@link #prefetch(Block)} does, but places it with the replacement
+	 * policy as though it had been pinned once and unpinned, not as a block
+	 * read ahead. Blocks reloaded at startup enter the pool this way (see
+	 * {@link BufferMgr#warmUp(java.io.File)}).
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @return false if no buffer could be used
+	 */
+	boolean preload(Block blk) {
+		return readIn(blk, false);
+	}
+
+	// CSC-540 Buffer Management Reads a block into a free or soon-replaced
+	// clean buffer, either as a block read ahead or as an ordinary resident.
+	private boolean readIn(Block blk, boolean ahead) {
+		long key = FileRegistry.key(blk);
+		Buffer buff;
+		lock.lock();
+		try {
+			if (findExistingBuffer(key) != null)
+				return true;
+			buff = choosePrefetchBuffer();
+			if (buff == null)
+				return false;
+			evict(buff);
+			map(key, blk, buff);
+			// Held by a pin that counts as no read while the block is read
+			buff.startLoading(blk);
+			buff.pinForCleaning();
+			numAvailable--;
+		} finally {
+			lock.unlock();
+		}
+		read(buff);
+		lock.lock();
+		try {
+			if (ahead) {
+				buff.unpin();
+				buff.prefetched = true;
+				policy.prefetched(buff);
+				EventTracer.trace(EventTracer.PREFETCH, blk, buff, -1, -1);
+			} else {
+				policy.accessed(buff);
+				buff.unpin();
+				policy.unpinned(buff);
+			}
+			numAvailable++;
+		} finally {
+			lock.unlock();
+		}
+		buff.loaded(true);
+		return true;
+	}
+
+	/**
+	 * Adds each block in the pool to the map, with its heat: the number of
+	 * times it has been pinned since it was read in.
+	 * 
+	 * @param heat
+	 *            the map to fill
+	 */
+	void residents(Map<Block, Integer> heat) {
+		lock.lock();
+		try {
+			for (Map.Entry<Block, Buffer> e : bufferPoolMap.entrySet())
+				heat.put(e.getKey(), e.getValue().heat());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if a block of a file whose whole name matches the pattern
+	 * is in the pool, pinned or not.
+	 * 
+	 * @param pattern
+	 *            the pattern of file names
+	 * @return true if a block of such a file is in the pool
+	 */
+	boolean holdsFile(Pattern pattern) {
+		lock.lock();
+		try {
+			for (Block blk : bufferPoolMap.keySet())
+				if (pattern.matcher(blk.fileName()).matches())
+					return true;
+			return false;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -159,11 +840,23 @@ public class BasicBufferMgr {
 		return numAvailable;
 	}
 
-	// CSC-540 Buffer Management- Uses Map to determine whether block is in
-	// buffer currently
-	private Buffer findExistingBuffer(Block blk) {
+	// CSC-540 Buffer Management Adds a pin to a buffer of this manager that
+	// is assigned to its block.
+	private Buffer pinBuffer(Buffer buff) {
+		if (!buff.isPinned()) {
+			numAvailable--;
+			policy.pinned(buff);
+		}
+		policy.accessed(buff);
+		buff.pin();
+		return buff;
+	}
+
+	// CSC-540 Buffer Management- Uses the block table to determine whether
+	// block is in buffer currently
+	private Buffer findExistingBuffer(long key) {
 
-		Buffer buff = bufferPoolMap.get(blk);
+		Buffer buff = blockTable.get(key);
 
 		if (buff!= null) {
 			//System.out.println("Block " + blk.number() + " already in buffer " + x); // For
@@ -175,58 +868,170 @@ public class BasicBufferMgr {
 		}
 	}
 
-	// CSC-540 Buffer Management-Uses Least Recently Modified Buffer Replacement
-	// Policy
+	// CSC-540 Buffer Management-Uses a free buffer if there is one, and
+	// otherwise the victim of the replacement policy (Least Recently Modified
+	// unless another policy was chosen). The victim stays a candidate until
+	// evict() is called for it.
 	private Buffer chooseUnpinnedBuffer() {
 		//getStatistics();(Can be used to get the statistics whenever a unpinned buffer is chosen)
 
-		int maxLSN = Integer.MAX_VALUE;
-		Buffer currentBuffer = null;
 		Buffer buff = null;
 
 		// If any buffer is still unallocated then allocate it
 		if (!freeBuffers.isEmpty()) {
 			buff = freeBuffers.getFirst();
 			freeBuffers.removeFirst();
-			System.out.println("New Buffer " + buff.getBufferIndex() + "Allocated");
 			return buff;
 
 		}
-		// Chooses modified page with lowest non-negative LSN
-		Iterator<Block> iterator1 = bufferPoolMap.keySet().iterator();
-		while (iterator1.hasNext()) {
-			Block bkey = iterator1.next();
-			currentBuffer = bufferPoolMap.get(bkey);
-			if (!currentBuffer.isPinned() && currentBuffer.modifiedBy >= 0
-					&& currentBuffer.logSequenceNumber < maxLSN
-					&& currentBuffer.logSequenceNumber >= 0) {
-				buff = currentBuffer;
-				maxLSN = buff.logSequenceNumber;
+		return policy.chooseVictim();
+	}
+
+	// CSC-540 Buffer Management Chooses a buffer for a prefetch: a free
+	// buffer, or a clean candidate that is not itself an unused prefetch.
+	private Buffer choosePrefetchBuffer() {
+		if (!freeBuffers.isEmpty())
+			return freeBuffers.removeFirst();
+		return policy.chooseClean(CANDIDATE_SEARCH);
+	}
+
+	// CSC-540 Buffer Management Maps the block to a clean buffer taken from
+	// the policy or the free list, and pins the buffer for the block's read.
+	private void startLoading(long key, Block blk, Buffer buff) {
+		map(key, blk, buff);
+		buff.startLoading(blk);
+		metrics.pinned(false);
+		EventTracer.trace(EventTracer.PIN_MISS, blk, buff, -1, -1);
+		pinBuffer(buff);
+	}
 
+	// CSC-540 Buffer Management Takes a victim that has been written back
+	// for the block, if it is still held only by the caller and clean, and
+	// the block has not been brought in meanwhile. Otherwise lets go of the
+	// victim, and returns false.
+	private boolean replace(long key, Block blk, Buffer victim) {
+		lock.lock();
+		try {
+			if (isCleanedHold(victim) && findExistingBuffer(key) == null) {
+				evict(victim, true);
+				victim.unpin();
+				numAvailable++;
+				startLoading(key, blk, victim);
+				return true;
 			}
+			release(victim);
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// CSC-540 Buffer Management Holds an unpinned dirty victim while it is
+	// written back without the lock, so that it is neither chosen again nor
+	// given up meanwhile.
+	private void hold(Buffer victim) {
+		policy.pinned(victim);
+		numAvailable--;
+		victim.pinForCleaning();
+	}
+
+	// CSC-540 Buffer Management Whether a held victim has been written back
+	// and nobody has pinned or modified it meanwhile.
+	private boolean isCleanedHold(Buffer victim) {
+		return victim.pinCount() == 1 && victim.modifiedBy() < 0 && owns(victim);
+	}
 
+	// CSC-540 Buffer Management Lets go of a held victim that could not be
+	// used, as an unpin would.
+	private void release(Buffer victim) {
+		victim.unpin();
+		if (!victim.isPinned()) {
+			numAvailable++;
+			if (victim.modifiedBy() >= 0)
+				policy.dirtied(victim);
+			policy.unpinned(victim);
 		}
+	}
 
-		// If no buffer is modified we look for the first unpinned,un-modified
-		// buffer and choose it for replacement.
-		if (buff == null) {
-			Iterator<Block> iterator2 = bufferPoolMap.keySet().iterator();
-			while (iterator2.hasNext()) {
-				Block bkey = iterator2.next();
-				currentBuffer = bufferPoolMap.get(bkey);
+	// CSC-540 Buffer Management Removes a clean buffer, already evicted and
+	// counted as unavailable, from this manager.
+	private void retire(Buffer buff) {
+		buff.unassign();
+		removeFrame(buff);
+	}
 
-				if (!currentBuffer.isPinned()) {
-					buff =currentBuffer;
+	// CSC-540 Buffer Management Reads the block of a buffer marked as
+	// loading, holding no lock, and wakes the threads waiting for it.
+	private void load(Buffer buff) {
+		read(buff);
+		buff.loaded(true);
+	}
 
-					System.out.println("Buffer Choosen For Replacement " + buff.getBufferIndex());
-					return buff;
-				}
-			}
+	// CSC-540 Buffer Management If the read fails, the buffer is unmapped and
+	// freed before the waiting threads wake, so that they read the block
+	// themselves.
+	private void read(Buffer buff) {
+		try {
+			buff.finishLoading();
+		} catch (RuntimeException e) {
+			loaded(buff, false);
+			throw e;
 		}
-		if(buff!=null)
-		System.out.println("Buffer Choosen For Replacement " + buff.getBufferIndex());
-		return buff;
+	}
+
+	// CSC-540 Buffer Management Unmaps the block of a buffer chosen for
+	// replacement, and takes the buffer away from the policy. Free buffers
+	// have no block and are not known to the policy.
+	private void evict(Buffer buff) {
+		evict(buff, buff.modifiedBy() >= 0);
+	}
+
+	// A victim that was written back just before is counted as dirty.
+	private void evict(Buffer buff, boolean dirty) {
+		if (buff.block() != null) {
+			unmap(buff);
+			policy.evicted(buff);
+			metrics.evicted(dirty);
+			EventTracer.trace(dirty ? EventTracer.EVICT_DIRTY : EventTracer.EVICT_CLEAN, buff.block(), buff, -1, -1);
+		}
+	}
+
+	// CSC-540 Buffer Management Maps the block to the buffer, in the block
+	// table and in bufferPoolMap.
+	private void map(long key, Block blk, Buffer buff) {
+		blockTable.put(key, buff);
+		bufferPoolMap.put(blk, buff);
+		buff.blockKey = key;
+	}
+
+	private void unmap(Buffer buff) {
+		blockTable.remove(buff.blockKey);
+		bufferPoolMap.remove(buff.block());
+		buff.blockKey = -1;
+	}
+
+	// CSC-540 Buffer Management Whether the buffer currently belongs to this
+	// manager.
+	private boolean owns(Buffer buff) {
+		return buff.slot >= 0 && buff.slot < poolSize && bufferpool[buff.slot] == buff;
+	}
+
+	// CSC-540 Buffer Management Places a buffer in the next unused slot.
+	private void addFrame(Buffer buff) {
+		if (poolSize == bufferpool.length)
+			bufferpool = Arrays.copyOf(bufferpool, Math.max(1, poolSize * 2));
+		bufferpool[poolSize] = buff;
+		buff.slot = poolSize++;
+	}
 
+	// CSC-540 Buffer Management Frees a buffer's slot by moving the last
+	// buffer into it.
+	private void removeFrame(Buffer buff) {
+		Buffer last = bufferpool[--poolSize];
+		bufferpool[buff.slot] = last;
+		last.slot = buff.slot;
+		bufferpool[poolSize] = null;
+		buff.slot = -1;
 	}
 
 	// Get the statistics for the buffer.
@@ -240,8 +1045,8 @@ public class BasicBufferMgr {
 			buff1 = bufferPoolMap.get(bkey);
 			int bufferReadCount = buff1.getReadCount();
 			int bufferWriteCount = buff1.getWriteCount();
-			System.out.println("Buffer " + buff1.getBufferIndex() + " LSN=" + buff1.logSequenceNumber + "Modified By"
-					+ buff1.modifiedBy + " Pin Count " + buff1.pins + " isPinned=" + buff1.isPinned() + " Read Count " + bufferReadCount + " Write Count" + bufferWriteCount);
+			System.out.println("Buffer " + buff1.getBufferIndex() + " LSN=" + buff1.logSequenceNumber() + "Modified By"
+					+ buff1.modifiedBy() + " Pin Count " + buff1.pinCount() + " isPinned=" + buff1.isPinned() + " Read Count " + bufferReadCount + " Write Count" + bufferWriteCount);
 
 			/*int bufferReadCount = buff1.getReadCount();
 			System.out.println("The read count of buffer " + buff1.getBufferIndex() + " " + bufferReadCount);
@@ -254,13 +1059,13 @@ public class BasicBufferMgr {
 	//CSC-540 Buffer Management- Test method given in the project description
 	public boolean containsMapping(Block blk)
 	{
-		return bufferPoolMap.containsKey(blk);
+		return blockTable.get(FileRegistry.key(blk)) != null;
 	}
 	
 	////CSC-540 Buffer Management - Test method given in the project description
 	public Buffer getMapping(Block blk)
 	{
-		return bufferPoolMap.get(blk);
+		return blockTable.get(FileRegistry.key(blk));
 	}
 	
 	
@@ -0,0 +1,132 @@
+package simpledb.buffer;
+
+import java.util.Arrays;
+
+/**
+ * A hash table from block keys (see {@link FileRegistry}) to buffers, with
+ * open addressing and linear probing over primitive arrays, so that a lookup
+ * allocates nothing and follows no entry objects. Removal shifts the
+ * following entries back rather than leaving tombstones. The table doubles
+ * when it becomes half full. It is not thread-safe; each partition guards its
+ * own table with its lock.
+ */
+class BlockTable {
+	private static final long EMPTY = -1;
+	private long[] keys;
+	private Buffer[] values;
+	private int mask;
+	private int shift;
+	private int size = 0;
+
+	/**
+	 * Creates a table with room for the specified number of entries before it
+	 * has to grow.
+	 * 
+	 * @param expected
+	 *            the expected number of entries
+	 */
+	BlockTable(int expected) {
+		allocate(Integer.highestOneBit(Math.max(2, expected) - 1) << 2);
+	}
+
+	/**
+	 * Returns the buffer of the block with the specified key, or null.
+	 * 
+	 * @param key
+	 *            the key of a block
+	 * @return the buffer, or null
+	 */
+	Buffer get(long key) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key)
+				return values[i];
+			if (k == EMPTY)
+				return null;
+		}
+	}
+
+	/**
+	 * Maps the block with the specified key to a buffer, replacing any
+	 * mapping it had.
+	 * 
+	 * @param key
+	 *            the key of a block
+	 * @param buff
+	 *            the buffer
+	 */
+	void put(long key, Buffer buff) {
+		if ((size + 1) * 2 > keys.length)
+			rehash(keys.length * 2);
+		int i = slot(key);
+		while (keys[i] != EMPTY && keys[i] != key)
+			i = (i + 1) & mask;
+		if (keys[i] == EMPTY)
+			size++;
+		keys[i] = key;
+		values[i] = buff;
+	}
+
+	/**
+	 * Removes the mapping of the block with the specified key, if any.
+	 * 
+	 * @param key
+	 *            the key of a block
+	 * @return the buffer it was mapped to, or null
+	 */
+	Buffer remove(long key) {
+		int i = slot(key);
+		while (keys[i] != key) {
+			if (keys[i] == EMPTY)
+				return null;
+			i = (i + 1) & mask;
+		}
+		Buffer removed = values[i];
+		// Move back each following entry whose probe sequence passes the
+		// hole, so that every entry stays reachable from its home slot.
+		for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			if (((j - slot(keys[j])) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		keys[i] = EMPTY;
+		values[i] = null;
+		size--;
+		return removed;
+	}
+
+	/**
+	 * Returns the number of blocks in the table.
+	 * 
+	 * @return the number of entries
+	 */
+	int size() {
+		return size;
+	}
+
+	// Fibonacci hashing spreads the file id and the block number over the
+	// top bits of the product.
+	private int slot(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new Buffer[capacity];
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Buffer[] oldValues = values;
+		allocate(capacity);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != EMPTY)
+				put(oldKeys[i], oldValues[i]);
+	}
+}
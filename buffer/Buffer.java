@@ -2,7 +2,10 @@ package simpledb.buffer;
 
 import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An individual buffer. A buffer wraps a page and stores information about its
@@ -14,16 +17,58 @@ import java.util.*;
  * @author Edward Sciore
  */
 public class Buffer {
-	private Page contents = new Page();
+	private Page contents;
+	// CSC-540 Buffer Management Off-heap slice holding the page instead of
+	// contents, when the buffer is backed by a PageArena.
+	private ByteBuffer frame = null;
+	// CSC-540 Buffer Management Read-only view of the block in a mapped file.
+	// While set, reads are served from it and the page is not used.
+	private volatile ByteBuffer mapped = null;
+	// CSC-540 Buffer Management Page used to format new blocks for
+	// arena-backed buffers, since page formatters work on a Page.
+	private static final ThreadLocal<Page> scratch = new ThreadLocal<Page>() {
+		protected Page initialValue() {
+			return new Page();
+		}
+	};
 	private Block blk = null;
-	int pins = 0;
-	private int bufferIndex; // buffer Id
-	int modifiedBy = -1; // negative means not modified
-	int logSequenceNumber = -1; // negative means no corresponding log
-								// record
+	int bufferIndex; // buffer Id
+	// CSC-540 Buffer Management The pin count, modifying transaction, LSN,
+	// read and write counts and heat are held in the pool's FrameTable, in
+	// the chunk d at offset at. The dirty buffer table, mapped files and
+	// event counters of the pool are reached through d.table.
+	private final FrameTable.Chunk d;
+	private final int at;
 	boolean alreadyAssigned = false;
-	private int bufferReadCount; // to get buffer read count
-	private int bufferWriteCount; // to get buffer write count
+	// CSC-540 Buffer Management Replacement bookkeeping, owned by the
+	// partition's ReplacementPolicy. queue tells which of the policy's
+	// structures holds the buffer, and the links thread it onto a BufferList.
+	static final int NOT_QUEUED = 0;
+	int queue = NOT_QUEUED;
+	Buffer prevUnpinned = null;
+	Buffer nextUnpinned = null;
+	Object policyState = null;
+	// CSC-540 Buffer Management Position in the owning manager's bufferpool,
+	// and the key of the block in its block table (see FileRegistry).
+	int slot = -1;
+	long blockKey = -1;
+	// CSC-540 Buffer Management Whether the block is being read into the
+	// page, outside the partition's lock, by the thread that chose the buffer
+	// for it. Threads that find the block meanwhile wait on loadDone.
+	private volatile boolean loading = false;
+	private final ReentrantLock loadLock = new ReentrantLock();
+	private final Condition loadDone = loadLock.newCondition();
+	// CSC-540 Buffer Management Held while the page is modified or written
+	// back, so that a write never sees half a modification. A lock rather
+	// than the buffer's monitor, since it is held across log forces and disk
+	// writes, which would otherwise pin the carrier of a virtual thread.
+	private final ReentrantLock pageLock = new ReentrantLock();
+	// CSC-540 Buffer Management Whether the block was read ahead and has not
+	// been pinned since.
+	boolean prefetched = false;
+	// CSC-540 Buffer Management The frame table of buffers made outside a
+	// pool, which share no pool-wide state.
+	private static final FrameTable UNPOOLED = new FrameTable();
 
 	/**
 	 * Creates a new buffer, wrapping a new {@link simpledb.file.Page page}.
@@ -50,10 +95,35 @@ public class Buffer {
 	 */
 	// CSC-540 Buffer_Management Overloaded Constructor for initializing index.
 	public Buffer(int index) {
+		this(index, null, null);
+	}
+
+	/**
+	 * Creates a buffer whose page is held in the specified byte buffer, such
+	 * as a slice of an off-heap arena, rather than in a page of its own. If
+	 * the byte buffer is null, a new {@link simpledb.file.Page page} is
+	 * allocated.
+	 * 
+	 * @param index
+	 *            the buffer id
+	 * @param frame
+	 *            a byte buffer with room for one block, or null
+	 * @param frames
+	 *            the table that holds the buffer's descriptor, or null
+	 */
+	Buffer(int index, ByteBuffer frame, FrameTable frames) {
 		bufferIndex = index;
-		System.out.println("Buffer Created");
-		bufferReadCount = 0;
-		bufferWriteCount = 0;
+		this.frame = frame;
+		if (frame == null)
+			contents = new Page();
+		// A buffer made outside a pool has a descriptor of its own
+		if (frames == null) {
+			d = new FrameTable.Chunk(UNPOOLED, 1);
+			at = 0;
+		} else {
+			d = frames.chunk(index);
+			at = frames.offset(index);
+		}
 	}
 
 	// CSC-540 Buffer_Management Retrieves bufferIndex
@@ -72,12 +142,15 @@ public class Buffer {
 		else
 			blockDetails = "Not allocated";
 
-		String bufferDetails = "BufferId" + bufferIndex + "Pin Count" + pins + "Allocated Block" + blockDetails;
+		String bufferDetails = "BufferId" + bufferIndex + "Pin Count" + d.pins[at] + "Allocated Block" + blockDetails;
 		return bufferDetails;
 
 	}
 
 	public int getInt(int offset) {
+		ByteBuffer bb = view();
+		if (bb != null)
+			return bb.getInt(offset);
 		return contents.getInt(offset);
 	}
 
@@ -92,6 +165,14 @@ public class Buffer {
 	 */
 
 	public String getString(int offset) {
+		ByteBuffer bb = view();
+		if (bb != null) {
+			// Same layout as Page: the length, followed by the bytes
+			byte[] byteval = new byte[bb.getInt(offset)];
+			for (int i = 0; i < byteval.length; i++)
+				byteval[i] = bb.get(offset + Page.INT_SIZE + i);
+			return new String(byteval);
+		}
 		return contents.getString(offset);
 	}
 
@@ -112,14 +193,22 @@ public class Buffer {
 	 *            the LSN of the corresponding log record
 	 */
 	public void setInt(int offset, int val, int txnum, int lsn) {
-		bufferWriteCount++; // increment write count for buffer
-		System.out.print("Buffer " + bufferIndex + " lsn=" + lsn);
-		modifiedBy = txnum;
-		System.out.println(" modified by=" + modifiedBy);
-		if (lsn >= 0)
-			logSequenceNumber = lsn;
-		contents.setInt(offset, val);
-
+		pageLock.lock();
+		try {
+			d.writes[at]++; // increment write count for buffer
+			EventTracer.trace(EventTracer.MODIFY, blk, this, txnum, lsn);
+			materialize();
+			markDirty(txnum);
+			d.modifiedBy[at] = txnum;
+			if (lsn >= 0)
+				d.lsn[at] = lsn;
+			if (frame != null)
+				frame.putInt(offset, val);
+			else
+				contents.setInt(offset, val);
+		} finally {
+			pageLock.unlock();
+		}
 	}
 
 	/**
@@ -139,13 +228,25 @@ public class Buffer {
 	 *            the LSN of the corresponding log record
 	 */
 	public void setString(int offset, String val, int txnum, int lsn) {
-		bufferWriteCount++; // increment write count for buffer
-		System.out.print("Buffer " + bufferIndex + " lsn=" + lsn);
-		modifiedBy = txnum;
-		System.out.println("modified by=" + modifiedBy);
-		if (lsn >= 0)
-			logSequenceNumber = lsn;
-		contents.setString(offset, val);
+		pageLock.lock();
+		try {
+			d.writes[at]++; // increment write count for buffer
+			EventTracer.trace(EventTracer.MODIFY, blk, this, txnum, lsn);
+			materialize();
+			markDirty(txnum);
+			d.modifiedBy[at] = txnum;
+			if (lsn >= 0)
+				d.lsn[at] = lsn;
+			if (frame != null) {
+				byte[] byteval = val.getBytes();
+				frame.putInt(offset, byteval.length);
+				for (int i = 0; i < byteval.length; i++)
+					frame.put(offset + Page.INT_SIZE + i, byteval[i]);
+			} else
+				contents.setString(offset, val);
+		} finally {
+			pageLock.unlock();
+		}
 	}
 
 	/**
@@ -160,29 +261,189 @@ public class Buffer {
 	/**
 	 * Writes the page to its disk block if the page is dirty. The method
 	 * ensures that the corresponding log record has been written to disk prior
-	 * to writing the page to disk.
+	 * to writing the page to disk. The method holds the same lock as the
+	 * modifying methods, so that the page cleaner can flush a buffer that
+	 * another thread has pinned without losing a concurrent modification.
 	 */
 	void flush() {
-		if (modifiedBy >= 0) {
-			SimpleDB.logMgr().flush(logSequenceNumber);
-			contents.write(blk);
-			modifiedBy = -1;
+		flush(true);
+	}
+
+	/**
+	 * Writes the page to its disk block if the page is dirty, optionally
+	 * without forcing the log first. The log need not be forced when the
+	 * caller has already forced it up to this buffer's LSN.
+	 * 
+	 * @param forceLog
+	 *            whether to force the log up to the buffer's LSN
+	 */
+	void flush(boolean forceLog) {
+		pageLock.lock();
+		try {
+			int modifiedBy = d.modifiedBy[at];
+			if (modifiedBy >= 0) {
+				long start = System.nanoTime();
+				if (forceLog)
+					d.table.forceLog(d.lsn[at]);
+				if (frame != null)
+					BlockIO.write(blk, frame);
+				else
+					contents.write(blk);
+				FrameTable pool = d.table;
+				if (pool.metrics != null)
+					pool.metrics.flushed(System.nanoTime() - start);
+				EventTracer.trace(EventTracer.FLUSH, blk, this, modifiedBy, d.lsn[at]);
+				if (pool.dirtyTable != null)
+					pool.dirtyTable.cleaned(this, modifiedBy);
+				d.modifiedBy[at] = -1;
+			}
+		} finally {
+			pageLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the page to the specified block if the buffer still holds that
+	 * block and is dirty due to a modification by the specified transaction.
+	 * The log is forced first only if the buffer's LSN is beyond the one
+	 * already forced. The buffer's manager need not be locked.
+	 * 
+	 * @param b
+	 *            the block the buffer was found to hold
+	 * @param txnum
+	 *            the transaction's id number
+	 * @param forcedLsn
+	 *            the LSN up to which the log has been forced
+	 * @return true if the page was written
+	 */
+	boolean flush(Block b, int txnum, int forcedLsn) {
+		pageLock.lock();
+		try {
+			if (blk == null || !blk.equals(b) || d.modifiedBy[at] != txnum)
+				return false;
+			flush(d.lsn[at] > forcedLsn);
+			return true;
+		} finally {
+			pageLock.unlock();
+		}
+	}
+
+	// CSC-540 Buffer Management Buffers are locked in order of id when
+	// several are written together, so that two such writes cannot deadlock.
+	private static final Comparator<Buffer> ID_ORDER = new Comparator<Buffer>() {
+		public int compare(Buffer b1, Buffer b2) {
+			return b1.bufferIndex < b2.bufferIndex ? -1 : (b1.bufferIndex == b2.bufferIndex ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Writes the pages of buffers that hold consecutive blocks of one file
+	 * with a single gathering write. Every buffer must hold its page in a byte
+	 * buffer (see {@link #frame()}).
+	 * While all their locks are held, each buffer is checked to still hold
+	 * its block, to be modified by the transaction, and to have an LSN the
+	 * log has been forced to; if any is not, nothing is written.
+	 * 
+	 * @param blocks
+	 *            the consecutive blocks
+	 * @param run
+	 *            the buffer of each block
+	 * @param txnum
+	 *            the transaction that modified the buffers
+	 * @param forcedLsn
+	 *            the LSN up to which the log has been forced
+	 * @return true if the pages were written
+	 */
+	static boolean flushRun(Block[] blocks, Buffer[] run, int txnum, int forcedLsn) {
+		Buffer[] lockOrder = run.clone();
+		Arrays.sort(lockOrder, ID_ORDER);
+		int locked = 0;
+		try {
+			for (; locked < lockOrder.length; locked++)
+				lockOrder[locked].pageLock.lock();
+			return writeRun(blocks, run, txnum, forcedLsn);
+		} finally {
+			while (locked > 0)
+				lockOrder[--locked].pageLock.unlock();
+		}
+	}
+
+	// CSC-540 Buffer Management The part of flushRun done with the locks of
+	// all the buffers held.
+	private static boolean writeRun(Block[] blocks, Buffer[] run, int txnum, int forcedLsn) {
+		ByteBuffer[] bbs = new ByteBuffer[run.length];
+		for (int i = 0; i < run.length; i++) {
+			Buffer buff = run[i];
+			if (buff.blk == null || !blocks[i].equals(buff.blk) || buff.modifiedBy() != txnum || buff.logSequenceNumber() > forcedLsn
+					|| buff.frame == null)
+				return false;
+			bbs[i] = buff.frame;
+		}
+		long start = System.nanoTime();
+		BlockIO.write(blocks[0], bbs);
+		long nanos = (System.nanoTime() - start) / run.length;
+		for (Buffer buff : run) {
+			FrameTable pool = buff.d.table;
+			if (pool.metrics != null)
+				pool.metrics.flushed(nanos);
+			EventTracer.trace(EventTracer.FLUSH, buff.blk, buff, txnum, buff.logSequenceNumber());
+			if (pool.dirtyTable != null)
+				pool.dirtyTable.cleaned(buff, txnum);
+			buff.d.modifiedBy[buff.at] = -1;
+		}
+		return true;
+	}
+
+	// CSC-540 Buffer Management The byte buffer that reads are served from,
+	// or null if they go to the page.
+	private ByteBuffer view() {
+		ByteBuffer bb = mapped;
+		return bb != null ? bb : frame;
+	}
+
+	// CSC-540 Buffer Management Copies a mapped block into the buffer's own
+	// page before it is modified, so that the change reaches the file only
+	// when the buffer is flushed.
+	private void materialize() {
+		if (mapped != null) {
+			if (frame != null)
+				BlockIO.read(blk, frame);
+			else
+				contents.read(blk);
+			mapped = null;
 		}
 	}
 
+	// CSC-540 Buffer Management Records the modification in the dirty buffer
+	// table, unless this transaction had already modified the buffer.
+	private void markDirty(int txnum) {
+		if (d.modifiedBy[at] != txnum && d.table.dirtyTable != null)
+			d.table.dirtyTable.dirtied(this, d.modifiedBy[at], txnum);
+	}
+
 	/**
 	 * Increases the buffer's pin count.
 	 */
 	void pin() {
-		pins++;
-		bufferReadCount++; //Increasing buffer read count
+		d.pins[at]++;
+		prefetched = false;
+		d.reads[at]++; //Increasing buffer read count
+		d.heat[at]++;
+	}
+
+	/**
+	 * Increases the buffer's pin count without counting a read, so that the
+	 * page cleaner can write the buffer back while it is pinned.
+	 */
+	void pinForCleaning() {
+		d.pins[at]++;
 	}
 
 	/**
 	 * Decreases the buffer's pin count.
 	 */
 	void unpin() {
-		pins--;
+		d.pins[at]--;
 	}
 
 	/**
@@ -192,7 +453,27 @@ public class Buffer {
 	 * @return true if the buffer is pinned
 	 */
 	boolean isPinned() {
-		return pins > 0;
+		return d.pins[at] > 0;
+	}
+
+	// CSC-540 Buffer Management Accessors of the descriptor in the
+	// FrameTable.
+	int pinCount() {
+		return d.pins[at];
+	}
+
+	int modifiedBy() {
+		return d.modifiedBy[at];
+	}
+
+	int logSequenceNumber() {
+		return d.lsn[at];
+	}
+
+	// Pins since the block was assigned, recorded in residency snapshots as
+	// the block's heat.
+	int heat() {
+		return d.heat[at];
 	}
 
 	/**
@@ -204,13 +485,14 @@ public class Buffer {
 	 * @return true if the transaction modified the buffer
 	 */
 	boolean isModifiedBy(int txnum) {
-		return txnum == modifiedBy;
+		return txnum == d.modifiedBy[at];
 	}
 
 	/**
 	 * Reads the contents of the specified block into the buffer's page. If the
 	 * buffer was dirty, then the contents of the previous page are first
-	 * written to disk.
+	 * written to disk. Blocks of memory-mapped files are not read; the buffer
+	 * serves them from the mapping until it is modified.
 	 * 
 	 * @param b
 	 *            a reference to the data block
@@ -219,8 +501,15 @@ public class Buffer {
 		alreadyAssigned = true;
 		flush();
 		blk = b;
-		contents.read(blk);
-		pins = 0;
+		mapped = d.table.mappedFiles == null ? null : d.table.mappedFiles.view(blk);
+		if (mapped == null) {
+			if (frame != null)
+				BlockIO.read(blk, frame);
+			else
+				contents.read(blk);
+		}
+		d.pins[at] = 0;
+		d.heat[at] = 0;
 	}
 
 	/**
@@ -236,18 +525,148 @@ public class Buffer {
 	void assignToNew(String filename, PageFormatter fmtr) {
 		alreadyAssigned = true;
 		flush();
-		fmtr.format(contents);
-		blk = contents.append(filename);
-		pins = 0;
+		mapped = null;
+		if (frame != null) {
+			// Format and append through a page, then load the new block
+			Page page = scratch.get();
+			fmtr.format(page);
+			blk = page.append(filename);
+			BlockIO.read(blk, frame);
+		} else {
+			fmtr.format(contents);
+			blk = contents.append(filename);
+		}
+		d.pins[at] = 0;
+		d.heat[at] = 0;
 		
 	}
 
+	/**
+	 * Reads the contents of the specified block into the buffer's page,
+	 * without assigning the buffer to the block. The buffer must belong to
+	 * no partition, as a buffer taken for a batch of pins does (see
+	 * {@link BufferMgr#pinAll(java.util.Collection)}).
+	 * 
+	 * @param b
+	 *            a reference to the data block
+	 */
+	void load(Block b) {
+		if (frame != null)
+			BlockIO.read(b, frame);
+		else
+			contents.read(b);
+	}
+
+	/**
+	 * Assigns the clean buffer to a block whose contents are already in its
+	 * page (see {@link #load(Block)}), or that is served from a mapped file.
+	 * 
+	 * @param b
+	 *            a reference to the data block
+	 */
+	void assignToLoadedBlock(Block b) {
+		alreadyAssigned = true;
+		blk = b;
+		mapped = d.table.mappedFiles == null ? null : d.table.mappedFiles.view(blk);
+		d.pins[at] = 0;
+		d.heat[at] = 0;
+	}
+
+	/**
+	 * Assigns the clean buffer to the specified block without reading it,
+	 * and marks it as loading. The block is read by
+	 * {@link #finishLoading()}, once the partition's lock has been released.
+	 * 
+	 * @param b
+	 *            a reference to the data block
+	 */
+	void startLoading(Block b) {
+		alreadyAssigned = true;
+		blk = b;
+		mapped = null;
+		d.pins[at] = 0;
+		d.heat[at] = 0;
+		loading = true;
+	}
+
+	/**
+	 * Reads the block the buffer was assigned by {@link #startLoading(Block)}
+	 * into its page, or maps it if its file is memory-mapped.
+	 */
+	void finishLoading() {
+		mapped = d.table.mappedFiles == null ? null : d.table.mappedFiles.view(blk);
+		if (mapped == null)
+			load(blk);
+	}
+
+	/**
+	 * Ends the loading of the block and wakes the threads waiting for it. If
+	 * the block could not be read, the buffer is detached from it.
+	 * 
+	 * @param ok
+	 *            whether the block was read
+	 */
+	void loaded(boolean ok) {
+		loadLock.lock();
+		try {
+			if (!ok) {
+				blk = null;
+				mapped = null;
+			}
+			loading = false;
+			loadDone.signalAll();
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if the buffer's block is still being read.
+	 * 
+	 * @return true if the buffer is loading
+	 */
+	boolean isLoading() {
+		return loading;
+	}
+
+	/**
+	 * Waits until the buffer's block has been read, if it is being read.
+	 */
+	void awaitLoaded() {
+		loadLock.lock();
+		try {
+			while (loading)
+				loadDone.awaitUninterruptibly();
+		} finally {
+			loadLock.unlock();
+		}
+	}
+
+	// CSC-540 Buffer Management The byte buffer holding the page, or null if
+	// the buffer has a page of its own.
+	ByteBuffer frame() {
+		return frame;
+	}
+
+	/**
+	 * Writes the page back if it is dirty and detaches the buffer from its
+	 * block, so that it can be handed to another partition of the pool.
+	 */
+	void unassign() {
+		flush();
+		blk = null;
+		mapped = null;
+		d.pins[at] = 0;
+		d.heat[at] = 0;
+		prefetched = false;
+	}
+
 	//CSC-540 Buffer Management Gives the number of times buffer is read
 	public int getReadCount() {
-		return bufferReadCount;
+		return d.reads[at];
 	}
 	//CSC-540 Buffer Management Gives the number of times buffer is written
 	public int getWriteCount() {
-		return bufferWriteCount;
+		return d.writes[at];
 	}
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+package simpledb.buffer;
+
+/**
+ * A doubly linked list of buffers that is threaded through the buffers
+ * themselves (see {@link Buffer#prevUnpinned} and {@link Buffer#nextUnpinned}),
+ * so that adding and removing a buffer allocate nothing. A buffer can be on
+ * at most one such list at a time; the replacement policies use
+ * {@link Buffer#queue} to remember which list holds it.
+ */
+class BufferList {
+	private Buffer head = null;
+	private Buffer tail = null;
+	private int size = 0;
+
+	/**
+	 * Returns the first buffer of the list, or null if it is empty.
+	 * 
+	 * @return the first buffer
+	 */
+	Buffer first() {
+		return head;
+	}
+
+	/**
+	 * Returns the last buffer of the list, or null if it is empty.
+	 * 
+	 * @return the last buffer
+	 */
+	Buffer last() {
+		return tail;
+	}
+
+	/**
+	 * Returns the number of buffers on the list.
+	 * 
+	 * @return the number of buffers
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a buffer at the front of the list.
+	 * 
+	 * @param buff
+	 *            a buffer that is on no list
+	 */
+	void addFirst(Buffer buff) {
+		insertBefore(head, buff);
+	}
+
+	/**
+	 * Adds a buffer at the end of the list.
+	 * 
+	 * @param buff
+	 *            a buffer that is on no list
+	 */
+	void addLast(Buffer buff) {
+		insertBefore(null, buff);
+	}
+
+	/**
+	 * Adds a buffer just before the specified one, or at the end of the list
+	 * if that is null.
+	 * 
+	 * @param next
+	 *            a buffer on this list, or null
+	 * @param buff
+	 *            a buffer that is on no list
+	 */
+	void insertBefore(Buffer next, Buffer buff) {
+		Buffer prev = next == null ? tail : next.prevUnpinned;
+		buff.prevUnpinned = prev;
+		buff.nextUnpinned = next;
+		if (prev != null)
+			prev.nextUnpinned = buff;
+		else
+			head = buff;
+		if (next != null)
+			next.prevUnpinned = buff;
+		else
+			tail = buff;
+		size++;
+	}
+
+	/**
+	 * Removes a buffer from the list.
+	 * 
+	 * @param buff
+	 *            a buffer on this list
+	 */
+	void remove(Buffer buff) {
+		if (buff.prevUnpinned != null)
+			buff.prevUnpinned.nextUnpinned = buff.nextUnpinned;
+		else
+			head = buff.nextUnpinned;
+		if (buff.nextUnpinned != null)
+			buff.nextUnpinned.prevUnpinned = buff.prevUnpinned;
+		else
+			tail = buff.prevUnpinned;
+		buff.prevUnpinned = null;
+		buff.nextUnpinned = null;
+		size--;
+	}
+}
@@ -0,0 +1,106 @@
+package simpledb.buffer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The event counters of a buffer pool. The counters are updated on the pin
+ * path by many threads at once, so each is a {@link LongAdder}, which spreads
+ * concurrent updates over separate cells instead of contending on one word.
+ * A read sums the cells, so a snapshot taken while the pool is busy is not
+ * exact, but no update is lost.
+ * <p>
+ * Times are kept in histograms with power-of-two buckets: bucket 0 counts
+ * events that took less than a microsecond, and bucket i counts events that
+ * took from 2<sup>i-1</sup> up to 2<sup>i</sup> microseconds. The last bucket
+ * also counts everything slower.
+ */
+class BufferMetrics {
+	static final int BUCKETS = 32;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder newBlocks = new LongAdder();
+	final LongAdder cleanEvictions = new LongAdder();
+	final LongAdder dirtyEvictions = new LongAdder();
+	final LongAdder waits = new LongAdder();
+	final LongAdder timeouts = new LongAdder();
+	final LongAdder flushes = new LongAdder();
+	final LongAdder flushNanos = new LongAdder();
+	private final LongAdder[] waitTimes = newHistogram();
+	private final LongAdder[] flushTimes = newHistogram();
+
+	/**
+	 * Records a pin of a block, and whether the block was already in the
+	 * pool.
+	 * 
+	 * @param hit
+	 *            true if the block did not have to be read
+	 */
+	void pinned(boolean hit) {
+		(hit ? hits : misses).increment();
+	}
+
+	/**
+	 * Records that a block was replaced or removed from the pool.
+	 * 
+	 * @param dirty
+	 *            true if the page had to be written back first
+	 */
+	void evicted(boolean dirty) {
+		(dirty ? dirtyEvictions : cleanEvictions).increment();
+	}
+
+	/**
+	 * Records how long a pin waited for a buffer, and whether it gave up.
+	 * 
+	 * @param nanos
+	 *            the time spent waiting, in nanoseconds
+	 * @param timedOut
+	 *            true if the pin was aborted
+	 */
+	void waited(long nanos, boolean timedOut) {
+		waits.increment();
+		if (timedOut)
+			timeouts.increment();
+		waitTimes[bucket(nanos)].increment();
+	}
+
+	/**
+	 * Records the write of a dirty page, including the log force before it.
+	 * 
+	 * @param nanos
+	 *            the time taken, in nanoseconds
+	 */
+	void flushed(long nanos) {
+		flushes.increment();
+		flushNanos.add(nanos);
+		flushTimes[bucket(nanos)].increment();
+	}
+
+	long[] waitHistogram() {
+		return snapshot(waitTimes);
+	}
+
+	long[] flushHistogram() {
+		return snapshot(flushTimes);
+	}
+
+	private static int bucket(long nanos) {
+		long micros = nanos / 1000;
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	private static LongAdder[] newHistogram() {
+		LongAdder[] h = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			h[i] = new LongAdder();
+		return h;
+	}
+
+	private static long[] snapshot(LongAdder[] h) {
+		long[] counts = new long[h.length];
+		for (int i = 0; i < h.length; i++)
+			counts[i] = h[i].sum();
+		return counts;
+	}
+}
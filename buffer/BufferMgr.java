@@ -1,22 +1,138 @@
 package simpledb.buffer;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import simpledb.file.*;
+import simpledb.server.SimpleDB;
 
 /**
  * The publicly-accessible buffer manager. A buffer manager wraps a basic buffer
  * manager, and provides the same methods. The difference is that the methods
  * {@link #pin(Block) pin} and {@link #pinNew(String, PageFormatter) pinNew}
  * will never return null. If no buffers are currently available, then the
- * calling thread will be placed on a waiting list. The waiting threads are
- * removed from the list when a buffer becomes available. If a thread has been
- * waiting for a buffer for an excessive amount of time (currently, 10 seconds)
- * then a {@link BufferAbortException} is thrown.
+ * calling thread will be placed on a waiting list. Each buffer that becomes
+ * unpinned is handed directly to the thread that has waited longest. If a
+ * thread has been waiting for a buffer for an excessive amount of time
+ * (by default, 10 seconds) then a {@link BufferAbortException} is thrown.
+ * <p>
+ * The pool can be split into several partitions. Each block hashes to one
+ * partition, which has its own map, free list, replacement state and lock, so
+ * threads working on different partitions do not contend. A partition that
+ * has no unpinned buffer takes one from a neighbouring partition.
+ * <p>
+ * A buffer manager can also host named sub-pools (see
+ * {@link #addPool(String, String, int, ReplacementPolicy.Factory) addPool}),
+ * each holding the blocks of the files whose names match its pattern. Every
+ * method that takes a block or file name routes it to the pool of that file.
+ * <p>
+ * A transaction that knows how many buffers it needs, such as a sort or a
+ * hash join, can reserve them ahead of time with {@link #reserve(int, int)},
+ * which fails at once instead of waiting. Pins made with a transaction's
+ * number use its reserved frames, and beyond them are limited by a
+ * per-transaction quota (see {@link #setPinQuota(int)}).
  * 
  * @author Edward Sciore
  */
 public class BufferMgr {
 	private static final long MAX_TIME = 10000; // 10 seconds
+	/** The JMX name of the pool's management bean. */
+	public static final String MBEAN_NAME = "simpledb:type=BufferPool";
+	// CSC-540 Buffer Management The first partition. When the pool is not
+	// partitioned this is the whole pool.
 	public BasicBufferMgr bufferMgr;
+	private BasicBufferMgr[] partitions;
+	// CSC-540 Buffer Management Threads waiting for a buffer, oldest first.
+	// numWaiters mirrors its size so that unpin can check it without locking.
+	private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+	private volatile int numWaiters = 0;
+	// CSC-540 Buffer Management Dirty buffers of the pool, by transaction.
+	private final DirtyBufferTable dirtyTable = new DirtyBufferTable();
+	private final MappedFiles mappedFiles = new MappedFiles();
+	// CSC-540 Buffer Management Event counters of the pool.
+	private final BufferMetrics metrics = new BufferMetrics();
+	// CSC-540 Buffer Management Descriptors of all the buffers of the pool,
+	// indexed by buffer id, with the pool-wide state above.
+	private final FrameTable frames = new FrameTable(dirtyTable, mappedFiles, metrics);
+	private volatile int numbuffers;
+	// CSC-540 Buffer Management The id of the next buffer added to the pool,
+	// and whether new buffers are held off the heap.
+	private int nextBufferIndex;
+	private final boolean offHeap;
+	// CSC-540 Buffer Management The number of buffers the pool was created
+	// with, which fixes the id range each partition started with.
+	private final int initialSize;
+	// CSC-540 Buffer Management How long a shrinking pool waits before
+	// looking again for unpinned buffers to retire.
+	private static final long RETIRE_RETRY = 1; // milliseconds
+	// CSC-540 Buffer Management The most blocks flushAll writes with one
+	// gathering write.
+	private static final int MAX_WRITE_RUN = 64;
+	// CSC-540 Buffer Management Aborts asynchronous pins that have waited
+	// too long. Its one thread is started on first use.
+	private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "simpledb-pin-timeouts");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	static {
+		timeouts.setRemoveOnCancelPolicy(true);
+	}
+	// CSC-540 Buffer Management Reads the blocks of asynchronous pins that
+	// were handed a buffer, and starts those the page cleaner held back, so
+	// that their I/O is done neither in the thread that unpinned the buffer
+	// nor in the common fork-join pool. Threads are made as needed and end
+	// when idle.
+	private static final ExecutorService asyncIo = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "simpledb-pin-io");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private volatile PageCleaner cleaner = null;
+	private volatile ReadAhead readAhead = null;
+	private ResidencySnapshot.Saver snapshotSaver = null;
+	private int nextToClean = 0;
+	// CSC-540 Buffer Management The named sub-pools and the routing of file
+	// names to them. Replaced as a whole when a pool is added.
+	private volatile PoolTable poolTable = new PoolTable(new SubPool[0]);
+	private boolean mbeanRegistered = false;
+	// CSC-540 Buffer Management Frames reserved by transactions and the pins
+	// they hold, by transaction. Transactions that pin with their number may
+	// hold at most pinQuota pins beyond their reservation; 0 means no limit.
+	private final HashMap<Integer, Reservation> reservations = new HashMap<Integer, Reservation>();
+	private volatile int pinQuota = 0;
 
 	/**
 	 * Creates a new buffer manager having the specified number of buffers. This
@@ -31,12 +147,76 @@ public class BufferMgr {
 	 *            the number of buffer slots to allocate
 	 */
 	public BufferMgr(int numbuffers) {
-		bufferMgr = new BasicBufferMgr(numbuffers);
+		this(numbuffers, 1);
+	}
+
+	/**
+	 * Creates a new buffer manager whose buffers are split evenly into the
+	 * specified number of partitions.
+	 * 
+	 * @param numbuffers
+	 *            the number of buffer slots to allocate
+	 * @param numpartitions
+	 *            the number of independently locked partitions
+	 */
+	public BufferMgr(int numbuffers, int numpartitions) {
+		this(numbuffers, numpartitions, false);
+	}
+
+	/**
+	 * Creates a new buffer manager whose buffers are split evenly into the
+	 * specified number of partitions, and whose pages are optionally held off
+	 * the Java heap. In off-heap mode each partition allocates one arena for
+	 * all of its pages, and blocks are read straight into it.
+	 * 
+	 * @param numbuffers
+	 *            the number of buffer slots to allocate
+	 * @param numpartitions
+	 *            the number of independently locked partitions
+	 * @param offHeap
+	 *            whether to hold the pages in off-heap arenas
+	 */
+	public BufferMgr(int numbuffers, int numpartitions, boolean offHeap) {
+		this(numbuffers, numpartitions, offHeap, StandardPolicy.LRM);
+	}
+
+	/**
+	 * Creates a new buffer manager that replaces buffers according to the
+	 * specified policy. Each partition gets its own policy object from the
+	 * factory; see {@link StandardPolicy} for the policies provided.
+	 * 
+	 * @param numbuffers
+	 *            the number of buffer slots to allocate
+	 * @param numpartitions
+	 *            the number of independently locked partitions
+	 * @param offHeap
+	 *            whether to hold the pages in off-heap arenas
+	 * @param policy
+	 *            creates the replacement policy of each partition
+	 */
+	public BufferMgr(int numbuffers, int numpartitions, boolean offHeap, ReplacementPolicy.Factory policy) {
+		if (numpartitions < 1 || numpartitions > numbuffers)
+			throw new IllegalArgumentException("bad partition count " + numpartitions);
+		this.numbuffers = numbuffers;
+		this.nextBufferIndex = numbuffers;
+		this.initialSize = numbuffers;
+		this.offHeap = offHeap;
+		partitions = new BasicBufferMgr[numpartitions];
+		int first = 0;
+		for (int i = 0; i < numpartitions; i++) {
+			int size = numbuffers / numpartitions + (i < numbuffers % numpartitions ? 1 : 0);
+			partitions[i] = new BasicBufferMgr(size, first, frames, offHeap, policy.newPolicy());
+			first += size;
+		}
+		bufferMgr = partitions[0];
 	}
 
 	// Returns info for each buffer in the pool.
 	public String toString() {
-		return bufferMgr.toString();
+		String buffInfo = new String();
+		for (BasicBufferMgr partition : partitions)
+			buffInfo += partition.toString();
+		return buffInfo;
 	}
 
 	/**
@@ -49,22 +229,74 @@ public class BufferMgr {
 	 * @return the buffer pinned to that block
 	 * @throws BufferAbortException 
 	 */
-	public synchronized Buffer pin(Block blk){
+	public Buffer pin(Block blk){
+		return pin(blk, MAX_TIME);
+	}
 
-		try {
-			long timestamp = System.currentTimeMillis();
-			Buffer buff = bufferMgr.pin(blk);
-			while (buff == null && !waitingTooLong(timestamp)) {
-				wait(MAX_TIME);
-				buff = bufferMgr.pin(blk);
-			}
-			if (buff == null)
-				throw new BufferAbortException();
+	/**
+	 * Pins a buffer to the specified block, waiting at most the specified
+	 * time for a buffer to become available. The pin is made as by
+	 * {@link #pinAsync(Block, long)}, and the calling thread then waits for
+	 * the future, so blocking and asynchronous pins share one wait queue, one
+	 * way of being handed a buffer, and one way of being held back by the
+	 * page cleaner.
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @param maxWait
+	 *            the longest time to wait, in milliseconds
+	 * @return the buffer pinned to that block
+	 * @throws BufferAbortException
+	 *             if no buffer became available in time
+	 */
+	public Buffer pin(Block blk, long maxWait) {
+		BufferMgr pool = poolFor(blk.fileName());
+		if (pool != this)
+			return pool.pin(blk, maxWait);
+		return join(pinAsync(blk, maxWait));
+	}
+
+	/**
+	 * Pins a buffer to the block with the specified key, potentially waiting
+	 * until a buffer becomes available. See {@link #pin(long, long)}.
+	 * 
+	 * @param key
+	 *            the key of a disk block (see {@link FileRegistry})
+	 * @return the buffer pinned to that block
+	 * @throws BufferAbortException
+	 *             if no buffer became available in time
+	 */
+	public Buffer pin(long key) {
+		return pin(key, MAX_TIME);
+	}
+
+	/**
+	 * Pins a buffer to the block with the specified key, waiting at most the
+	 * specified time for a buffer to become available. This behaves as
+	 * {@link #pin(Block, long)}, but when the block is in the pool it
+	 * allocates nothing and hashes no file name, so it suits callers that
+	 * pin the same blocks over and over and can keep their keys.
+	 * 
+	 * @param key
+	 *            the key of a disk block (see {@link FileRegistry})
+	 * @param maxWait
+	 *            the longest time to wait, in milliseconds
+	 * @return the buffer pinned to that block
+	 * @throws BufferAbortException
+	 *             if no buffer became available in time
+	 */
+	public Buffer pin(long key, long maxWait) {
+		BufferMgr pool = poolFor(FileRegistry.fileName(FileRegistry.fileId(key)));
+		if (pool != this)
+			return pool.pin(key, maxWait);
+		ReadAhead ra = readAhead;
+		if (ra != null)
+			ra.accessed(FileRegistry.block(key));
+		throttle();
+		Buffer buff = tryPin(key, null);
+		if (buff != null)
 			return buff;
-		} catch (InterruptedException e) {
-			throw new BufferAbortException();
-			
-		}
+		return join(awaitAsync(new Waiter(FileRegistry.block(key), null, null), maxWait));
 	}
 
 	/**
@@ -79,55 +311,1391 @@ public class BufferMgr {
 	 * @return the buffer pinned to that block
 	 * @throws BufferAbortException 
 	 */
-	public synchronized Buffer pinNew(String filename, PageFormatter fmtr){
+	public Buffer pinNew(String filename, PageFormatter fmtr){
+		return pinNew(filename, fmtr, MAX_TIME);
+	}
+
+	/**
+	 * Pins a buffer to a new block in the specified file, waiting at most the
+	 * specified time for a buffer to become available.
+	 * 
+	 * @param filename
+	 *            the name of the file
+	 * @param fmtr
+	 *            the formatter used to initialize the page
+	 * @param maxWait
+	 *            the longest time to wait, in milliseconds
+	 * @return the buffer pinned to that block
+	 * @throws BufferAbortException
+	 *             if no buffer became available in time
+	 */
+	public Buffer pinNew(String filename, PageFormatter fmtr, long maxWait) {
+		BufferMgr pool = poolFor(filename);
+		if (pool != this)
+			return pool.pinNew(filename, fmtr, maxWait);
+		return join(pinNewAsync(filename, fmtr, maxWait));
+	}
+
+	/**
+	 * Pins buffers to all the specified blocks at once, without waiting.
+	 * Blocks already in the pool are pinned first. Unpinned buffers are then
+	 * taken for all the missing blocks together; if there are not enough,
+	 * every pin made is undone and a {@link BufferAbortException} is thrown
+	 * at once. The missing blocks are read in file and block order, holding
+	 * no lock, and each run of consecutive blocks of a file is read with a
+	 * single scattering read. A block listed
+	 * more than once is pinned once for each time it is listed.
+	 * 
+	 * @param blocks
+	 *            references to disk blocks
+	 * @return the pinned buffers, in the order of the blocks
+	 * @throws BufferAbortException
+	 *             if too few buffers are unpinned
+	 */
+	public List<Buffer> pinAll(Collection<Block> blocks) {
+		Block[] blks = blocks.toArray(new Block[blocks.size()]);
+		Buffer[] buffs = new Buffer[blks.length];
+		LinkedHashMap<BufferMgr, List<Integer>> byPool = new LinkedHashMap<BufferMgr, List<Integer>>();
+		for (int i = 0; i < blks.length; i++) {
+			BufferMgr pool = poolFor(blks[i].fileName());
+			List<Integer> positions = byPool.get(pool);
+			if (positions == null) {
+				positions = new ArrayList<Integer>();
+				byPool.put(pool, positions);
+			}
+			positions.add(i);
+		}
 		try {
-			long timestamp = System.currentTimeMillis();
-			Buffer buff = bufferMgr.pinNew(filename, fmtr);
-			while (buff == null && !waitingTooLong(timestamp)) {
-				wait(MAX_TIME);
-				buff = bufferMgr.pinNew(filename, fmtr);
-			}
-			if (buff == null)
-				throw new BufferAbortException();
-			return buff;
-		} catch (InterruptedException e) {
+			for (Map.Entry<BufferMgr, List<Integer>> e : byPool.entrySet())
+				e.getKey().pinBatch(blks, e.getValue(), buffs);
+		} catch (RuntimeException e) {
+			for (Buffer buff : buffs)
+				if (buff != null)
+					unpin(buff);
+			throw e;
+		}
+		return Arrays.asList(buffs);
+	}
+
+	/**
+	 * Reserves the specified number of frames for a transaction, or throws a
+	 * {@link BufferAbortException} at once if that many buffers are not
+	 * unpinned. The frames are taken out of the pool, so they no longer count
+	 * as {@link #available() available}, and nobody else can pin them. Each
+	 * pin the transaction then makes with its number (see
+	 * {@link #pin(int, Block)}) is given one of its frames until it holds as
+	 * many pins as it reserved, and each such pin unpinned with its number
+	 * gives a frame back to the reservation. A transaction that reserves more
+	 * than once adds to its reservation. Frames are reserved in this pool
+	 * only, not in its sub-pools.
+	 * 
+	 * @param txnum
+	 *            the transaction's id number
+	 * @param n
+	 *            the number of frames to reserve
+	 * @throws BufferAbortException
+	 *             if fewer than n buffers are unpinned
+	 * @throws IllegalArgumentException
+	 *             if n is not positive
+	 */
+	public void reserve(int txnum, int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("bad reservation " + n);
+		Buffer[] frames = new Buffer[n];
+		if (!reserve(frames, new BasicBufferMgr[n]))
 			throw new BufferAbortException();
+		synchronized (reservations) {
+			Reservation r = reservations.get(txnum);
+			if (r == null) {
+				r = new Reservation();
+				reservations.put(txnum, r);
+			}
+			for (Buffer frame : frames)
+				r.frames.add(frame);
+		}
+	}
+
+	/**
+	 * Ends the reservation of a transaction, returning its unused frames to
+	 * the pool, and forgets the pins it holds, whether or not it reserved
+	 * frames. A transaction should unpin its buffers and call this method
+	 * when it commits or rolls back; buffers it still holds stay pinned.
+	 * 
+	 * @param txnum
+	 *            the transaction's id number
+	 */
+	public void release(int txnum) {
+		Reservation r;
+		synchronized (reservations) {
+			r = reservations.remove(txnum);
+		}
+		if (r != null)
+			for (Buffer frame : r.frames)
+				handOff(frame, homeOf(frame));
+	}
+
+	/**
+	 * Sets the number of pins a transaction may hold beyond its reservation,
+	 * in this pool and each of its sub-pools. A pin made with a transaction's
+	 * number that would exceed it throws a {@link BufferAbortException} at
+	 * once rather than wait. The quota is 0, meaning no limit, unless it is
+	 * set.
+	 * 
+	 * @param quota
+	 *            the number of pins, or 0 for no limit
+	 */
+	public void setPinQuota(int quota) {
+		pinQuota = quota;
+		for (SubPool sub : poolTable.subPools)
+			sub.pool.setPinQuota(quota);
+	}
+
+	/**
+	 * Pins a buffer to the specified block on behalf of a transaction. The
+	 * buffer is one of the transaction's reserved frames if it has any left
+	 * (see {@link #reserve(int, int)}), and otherwise is got as by
+	 * {@link #pin(Block)}.
+	 * 
+	 * @param txnum
+	 *            the transaction's id number
+	 * @param blk
+	 *            a reference to a disk block
+	 * @return the buffer pinned to that block
+	 * @throws BufferAbortException
+	 *             if the transaction would exceed its pin quota, or no buffer
+	 *             became available in time
+	 */
+	public Buffer pin(int txnum, Block blk) {
+		BufferMgr pool = poolFor(blk.fileName());
+		if (pool != this)
+			return pool.pin(txnum, blk);
+		Buffer frame = claim(txnum);
+		Buffer buff;
+		try {
+			if (frame == null)
+				buff = pin(blk);
+			else {
+				ReadAhead ra = readAhead;
+				if (ra != null)
+					ra.accessed(blk);
+				buff = pinWith(blk, frame);
+			}
+		} catch (RuntimeException e) {
+			unclaim(txnum, frame);
+			throw e;
 		}
+		count(txnum, buff);
+		return buff;
+	}
+
+	/**
+	 * Pins a buffer to a new block in the specified file on behalf of a
+	 * transaction, using one of its reserved frames if it has any left, as
+	 * {@link #pin(int, Block)} does.
+	 * 
+	 * @param txnum
+	 *            the transaction's id number
+	 * @param filename
+	 *            the name of the file
+	 * @param fmtr
+	 *            the formatter used to initialize the page
+	 * @return the buffer pinned to the new block
+	 * @throws BufferAbortException
+	 *             if the transaction would exceed its pin quota, or no buffer
+	 *             became available in time
+	 */
+	public Buffer pinNew(int txnum, String filename, PageFormatter fmtr) {
+		BufferMgr pool = poolFor(filename);
+		if (pool != this)
+			return pool.pinNew(txnum, filename, fmtr);
+		Buffer frame = claim(txnum);
+		Buffer buff;
+		try {
+			buff = frame == null ? pinNew(filename, fmtr) : pinNewWith(filename, fmtr, frame);
+		} catch (RuntimeException e) {
+			unclaim(txnum, frame);
+			throw e;
+		}
+		count(txnum, buff);
+		return buff;
+	}
+
+	/**
+	 * Pins a buffer to the specified block without blocking the calling
+	 * thread. See {@link #pinAsync(Block, long)}.
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @return a future that completes with the buffer pinned to that block
+	 */
+	public CompletableFuture<Buffer> pinAsync(Block blk) {
+		return pinAsync(blk, MAX_TIME);
+	}
+
+	/**
+	 * Pins a buffer to the specified block without blocking the calling
+	 * thread while it waits for a buffer. If a buffer is available the block
+	 * is pinned at once, in the calling thread, and the future returned is
+	 * already complete. Otherwise the request joins the threads waiting for a
+	 * buffer; when a buffer is handed to it, the block is read by a thread
+	 * of the buffer manager's own and the future completes. If no buffer
+	 * becomes available within the specified time, the future completes with
+	 * a {@link BufferAbortException}. A buffer pinned for a future that was
+	 * cancelled meanwhile is unpinned again.
+	 * <p>
+	 * While the page cleaner holds blocking pins back (see
+	 * {@link #startCleaner(double, double)}), an asynchronous pin is held
+	 * back as long, without blocking: it is started by that thread once the
+	 * cleaner has caught up, or after the longest time a blocking pin would
+	 * be held.
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @param maxWait
+	 *            the longest time to wait, in milliseconds
+	 * @return a future that completes with the buffer pinned to that block
+	 */
+	public CompletableFuture<Buffer> pinAsync(Block blk, long maxWait) {
+		BufferMgr pool = poolFor(blk.fileName());
+		if (pool != this)
+			return pool.pinAsync(blk, maxWait);
+		ReadAhead ra = readAhead;
+		if (ra != null)
+			ra.accessed(blk);
+		CompletableFuture<Void> held = throttleAsync();
+		if (held != null)
+			return startAsync(new Waiter(blk, null, null), held, maxWait);
+		Buffer buff = tryPin(FileRegistry.key(blk), blk);
+		if (buff != null)
+			return CompletableFuture.completedFuture(buff);
+		return awaitAsync(new Waiter(blk, null, null), maxWait);
+	}
+
+	/**
+	 * Pins a buffer to a new block in the specified file without blocking the
+	 * calling thread. See {@link #pinNewAsync(String, PageFormatter, long)}.
+	 * 
+	 * @param filename
+	 *            the name of the file
+	 * @param fmtr
+	 *            the formatter used to initialize the page
+	 * @return a future that completes with the buffer pinned to the new block
+	 */
+	public CompletableFuture<Buffer> pinNewAsync(String filename, PageFormatter fmtr) {
+		return pinNewAsync(filename, fmtr, MAX_TIME);
 	}
 
 	/**
-	 * Unpins the specified buffer. If the buffer's pin count becomes 0, then
-	 * the threads on the wait list are notified.
+	 * Pins a buffer to a new block in the specified file without blocking the
+	 * calling thread while it waits for a buffer, in the same way as
+	 * {@link #pinAsync(Block, long)}.
+	 * 
+	 * @param filename
+	 *            the name of the file
+	 * @param fmtr
+	 *            the formatter used to initialize the page
+	 * @param maxWait
+	 *            the longest time to wait, in milliseconds
+	 * @return a future that completes with the buffer pinned to the new block
+	 */
+	public CompletableFuture<Buffer> pinNewAsync(String filename, PageFormatter fmtr, long maxWait) {
+		BufferMgr pool = poolFor(filename);
+		if (pool != this)
+			return pool.pinNewAsync(filename, fmtr, maxWait);
+		CompletableFuture<Void> held = throttleAsync();
+		if (held != null)
+			return startAsync(new Waiter(null, filename, fmtr), held, maxWait);
+		Buffer buff = tryPinNew(filename, fmtr);
+		if (buff != null)
+			return CompletableFuture.completedFuture(buff);
+		return awaitAsync(new Waiter(null, filename, fmtr), maxWait);
+	}
+
+	/**
+	 * Unpins the specified buffer. If the buffer's pin count becomes 0 and
+	 * threads are waiting, the buffer is handed to the longest waiting
+	 * thread. A pin made on behalf of a transaction (see
+	 * {@link #pin(int, Block)}) is unpinned with
+	 * {@link #unpin(int, Buffer)} instead, so that it is taken off the
+	 * transaction's count; unpinning it here leaves it counted until the
+	 * transaction is {@link #release(int) released}.
 	 * 
 	 * @param buff
 	 *            the buffer to be unpinned
 	 */
-	public synchronized void unpin(Buffer buff) {
-		bufferMgr.unpin(buff);
-		if (!buff.isPinned())
-			notifyAll();
+	public void unpin(Buffer buff) {
+		BufferMgr pool = poolFor(buff.block().fileName());
+		if (pool != this) {
+			pool.unpin(buff);
+			return;
+		}
+		BasicBufferMgr partition = partitionFor(buff.block());
+		if (partition.unpin(buff))
+			passOn(buff, partition);
 	}
 
 	/**
-	 * Flushes the dirty buffers modified by the specified transaction.
+	 * Unpins a buffer pinned on behalf of a transaction. If the pin used one
+	 * of the transaction's reserved frames, an unpinned buffer is taken back
+	 * out of the pool for the reservation, in place of the one unpinned; the
+	 * replacement policy chooses which. If every buffer has been pinned
+	 * meanwhile, the reservation is owed the frame, and takes it at the next
+	 * pin the transaction makes with its number if a buffer is unpinned by
+	 * then. A pin the transaction did not make with its number is unpinned
+	 * as by {@link #unpin(Buffer)}.
+	 * 
+	 * @param txnum
+	 *            the transaction's id number
+	 * @param buff
+	 *            the buffer to be unpinned
+	 */
+	public void unpin(int txnum, Buffer buff) {
+		BufferMgr pool = poolFor(buff.block().fileName());
+		if (pool != this) {
+			pool.unpin(txnum, buff);
+			return;
+		}
+		boolean reserved = false;
+		synchronized (reservations) {
+			Reservation r = reservations.get(txnum);
+			if (r != null && r.pinned.remove(buff)) {
+				r.held--;
+				if (r.funded > 0) {
+					r.funded--;
+					reserved = true;
+				}
+				if (r.isEmpty())
+					reservations.remove(txnum);
+			}
+		}
+		BasicBufferMgr partition = partitionFor(buff.block());
+		boolean unpinned = partition.unpin(buff);
+		if (!reserved) {
+			if (unpinned)
+				passOn(buff, partition);
+			return;
+		}
+		Buffer frame = partition.surrender();
+		synchronized (reservations) {
+			Reservation r = reservations.get(txnum);
+			if (r != null) {
+				if (frame == null)
+					r.owed++; // every buffer is pinned
+				else
+					r.frames.add(frame);
+				return;
+			}
+		}
+		if (frame != null)
+			handOff(frame, partition); // released meanwhile
+	}
+
+	/**
+	 * Flushes the dirty buffers modified by the specified transaction. Only
+	 * the buffers the transaction modified are visited. The log is forced
+	 * once, up to the highest of their LSNs, through the {@link LogForcer},
+	 * so that concurrent commits can share one force. The pages are then
+	 * written in file and block order, each run of consecutive blocks of a
+	 * file with a single gathering write. A buffer that could not be written,
+	 * because it was moving between partitions, stays in the dirty table.
+	 * Each sub-pool then flushes its own buffers in the same way.
 	 * 
 	 * @param txnum
 	 *            the transaction's id number
 	 */
 	public void flushAll(int txnum) {
-		bufferMgr.flushAll(txnum);
+		TreeMap<Block, Buffer> dirty = dirtyTable.takeModifiedBy(txnum);
+		int maxLsn = -1;
+		for (Buffer buff : dirty.values())
+			maxLsn = Math.max(maxLsn, buff.logSequenceNumber());
+		frames.forceLog(maxLsn);
+		Block[] blks = dirty.keySet().toArray(new Block[dirty.size()]);
+		Buffer[] buffs = dirty.values().toArray(new Buffer[dirty.size()]);
+		int start = 0;
+		for (int k = 1; k <= blks.length; k++)
+			if (k == blks.length || k - start == MAX_WRITE_RUN
+					|| !blks[k].fileName().equals(blks[k - 1].fileName())
+					|| blks[k].number() != blks[k - 1].number() + 1) {
+				flushRun(blks, buffs, start, k, txnum, maxLsn);
+				start = k;
+			}
+		for (Buffer buff : buffs)
+			if (buff.isModifiedBy(txnum))
+				dirtyTable.restore(buff, txnum);
+		for (SubPool sub : poolTable.subPools)
+			sub.pool.flushAll(txnum);
+	}
+
+	// CSC-540 Buffer Management Writes back the buffers of the consecutive
+	// blocks blks[start] to blks[end - 1], together if there are several.
+	// If one of them has changed since the dirty table was read, each is
+	// written on its own as usual.
+	private void flushRun(Block[] blks, Buffer[] buffs, int start, int end, int txnum, int forcedLsn) {
+		if (end - start > 1) {
+			Block[] run = Arrays.copyOfRange(blks, start, end);
+			if (Buffer.flushRun(run, Arrays.copyOfRange(buffs, start, end), txnum, forcedLsn)) {
+				for (int k = start; k < end; k++)
+					partitionFor(blks[k]).flushed(buffs[k], blks[k]);
+				return;
+			}
+		}
+		for (int k = start; k < end; k++)
+			partitionFor(blks[k]).flush(buffs[k], txnum, forcedLsn);
 	}
 
 	/**
-	 * Returns the number of available (ie unpinned) buffers.
+	 * Returns the number of available (ie unpinned) buffers. The buffers of
+	 * sub-pools are not counted.
 	 * 
 	 * @return the number of available buffers
 	 */
 	public int available() {
-		return bufferMgr.available();
+		int numAvailable = 0;
+		for (BasicBufferMgr partition : partitions)
+			numAvailable += partition.available();
+		return numAvailable;
+	}
+
+	/**
+	 * Starts a background page cleaner, which writes dirty unpinned buffers
+	 * back to disk so that a pin rarely has to write out its victim. Pins
+	 * are throttled while the fraction of dirty buffers is above the
+	 * high-water mark.
+	 * 
+	 * @param cleanFraction
+	 *            the fraction of the pool the cleaner tries to keep clean
+	 * @param highWater
+	 *            the fraction of dirty buffers above which pins are throttled
+	 */
+	public synchronized void startCleaner(double cleanFraction, double highWater) {
+		if (cleaner != null)
+			return;
+		cleaner = new PageCleaner(this, numbuffers, cleanFraction, highWater);
+		cleaner.start();
+	}
+
+	/**
+	 * Stops the background page cleaner, if one is running.
+	 */
+	public synchronized void stopCleaner() {
+		if (cleaner != null) {
+			cleaner.shutdown();
+			cleaner = null;
+		}
+	}
+
+	/**
+	 * Turns on sequential read-ahead. When the blocks of a file are pinned in
+	 * order, the blocks that follow are read into unpinned buffers in the
+	 * background, up to the specified number of blocks ahead of the scan.
+	 * 
+	 * @param maxWindow
+	 *            the largest number of blocks to read ahead
+	 */
+	public synchronized void startReadAhead(int maxWindow) {
+		if (readAhead == null)
+			readAhead = new ReadAhead(this, maxWindow);
+	}
+
+	/**
+	 * Turns off sequential read-ahead.
+	 */
+	public synchronized void stopReadAhead() {
+		if (readAhead != null) {
+			readAhead.shutdown();
+			readAhead = null;
+		}
+	}
+
+	/**
+	 * Saves a snapshot of the blocks in the pool and its sub-pools, with how
+	 * often each has been pinned since it was read in, so that a later run
+	 * can reload them with {@link #warmUp(File)}.
+	 * 
+	 * @param f
+	 *            the snapshot file
+	 * @return the number of blocks saved
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public int saveResidency(File f) throws IOException {
+		HashMap<Block, Integer> heat = new HashMap<Block, Integer>();
+		residents(heat);
+		ResidencySnapshot.save(heat, f);
+		return heat.size();
+	}
+
+	/**
+	 * Starts reloading the blocks listed in a snapshot saved by
+	 * {@link #saveResidency(File)}, and returns at once. If the pool is
+	 * smaller than the snapshot, the blocks pinned most often are chosen.
+	 * They are read by several background threads, from the least pinned to
+	 * the most, into free buffers or clean ones the pool would replace soon,
+	 * so the pool can be used meanwhile and nothing pinned since startup is
+	 * replaced. Each block enters the pool as though it had been pinned and
+	 * unpinned, so the hottest blocks are the last the replacement policy
+	 * would give up. Each block goes to the pool or sub-pool of its file.
+	 * 
+	 * @param f
+	 *            the snapshot file
+	 * @return the number of blocks to be reloaded
+	 * @throws IOException
+	 *             if the snapshot cannot be read
+	 */
+	public int warmUp(File f) throws IOException {
+		int capacity = numbuffers;
+		for (SubPool sub : poolTable.subPools)
+			capacity += sub.pool.size();
+		List<Block> blocks = ResidencySnapshot.load(f, capacity);
+		ResidencySnapshot.warmUp(this, blocks);
+		return blocks.size();
+	}
+
+	/**
+	 * Starts a background thread that saves a snapshot of the pool to the
+	 * specified file at a fixed interval, replacing any such thread.
+	 * 
+	 * @param f
+	 *            the snapshot file
+	 * @param interval
+	 *            the time between snapshots, in milliseconds
+	 */
+	public synchronized void startSnapshots(File f, long interval) {
+		stopSnapshots();
+		snapshotSaver = new ResidencySnapshot.Saver(this, f, interval);
+		snapshotSaver.start();
+	}
+
+	/**
+	 * Stops saving snapshots periodically, if that was started.
+	 */
+	public synchronized void stopSnapshots() {
+		if (snapshotSaver != null) {
+			snapshotSaver.shutdown();
+			snapshotSaver = null;
+		}
+	}
+
+	/**
+	 * Serves the blocks of the specified file from read-only memory-mapped
+	 * regions instead of copying each block into a page when it is pinned.
+	 * This suits large files that are mostly read. A buffer that is modified
+	 * copies its block into its own page first, and is written back after
+	 * its log records as usual. Blocks already in the pool are not affected.
+	 * 
+	 * @param filename
+	 *            the name of the file
+	 */
+	public void mapFile(String filename) {
+		BufferMgr pool = poolFor(filename);
+		if (pool != this)
+			pool.mapFile(filename);
+		else
+			mappedFiles.enable(filename);
+	}
+
+	/**
+	 * Returns the number of dirty buffers, pinned or not, not counting those
+	 * of sub-pools.
+	 * 
+	 * @return the number of dirty buffers
+	 */
+	public int dirtyCount() {
+		return dirtyTable.count();
+	}
+
+	/**
+	 * Returns the number of pinned buffers, not counting those of sub-pools.
+	 * The count is taken without locking, by a scan of the pool's descriptor
+	 * table, so while the pool is in use it is only a snapshot.
+	 * 
+	 * @return the number of pinned buffers
+	 */
+	public int pinnedCount() {
+		return frames.pinnedCount();
+	}
+
+	/**
+	 * Returns the lowest LSN of any dirty buffer of the pool or its
+	 * sub-pools, or -1 if no dirty buffer has a log record. A checkpoint can
+	 * discard the log only before this record. Like {@link #pinnedCount()},
+	 * the result is a snapshot taken without locking.
+	 * 
+	 * @return the lowest LSN of a dirty buffer, or -1
+	 */
+	public int oldestDirtyLsn() {
+		int oldest = frames.oldestDirtyLsn();
+		for (SubPool sub : poolTable.subPools) {
+			int lsn = sub.pool.oldestDirtyLsn();
+			if (lsn >= 0 && (oldest < 0 || lsn < oldest))
+				oldest = lsn;
+		}
+		return oldest;
+	}
+
+	/**
+	 * Returns the number of buffers in the pool, not counting those of
+	 * sub-pools.
+	 * 
+	 * @return the number of buffers
+	 */
+	public int size() {
+		return numbuffers;
+	}
+
+	/**
+	 * Grows or shrinks the pool to the specified number of buffers while it
+	 * is in use. New buffers are spread over the partitions and go first to
+	 * threads waiting for a buffer. To shrink, unpinned buffers are chosen as
+	 * the replacement policy would choose victims, written back if dirty, and
+	 * retired one at a time; each holds a partition's lock only for that one
+	 * buffer, so pins are never held up for longer than one page write. If
+	 * too few buffers are unpinned, the pool waits for more, for at most the
+	 * specified time, and then stops short of the requested size.
+	 * 
+	 * @param newsize
+	 *            the number of buffers wanted, at least 1
+	 * @param maxWait
+	 *            the longest time to wait for buffers to retire, in
+	 *            milliseconds
+	 * @return the number of buffers in the pool afterwards
+	 */
+	public synchronized int resize(int newsize, long maxWait) {
+		if (newsize < 1)
+			throw new IllegalArgumentException("bad pool size " + newsize);
+		if (newsize > numbuffers)
+			grow(newsize - numbuffers);
+		else if (newsize < numbuffers)
+			shrink(numbuffers - newsize, maxWait);
+		PageCleaner c = cleaner;
+		if (c != null)
+			c.resized(numbuffers);
+		return numbuffers;
+	}
+
+	/**
+	 * Adds a named sub-pool of the specified size and replacement policy,
+	 * which from now on holds the blocks of every file whose whole name
+	 * matches the specified regular expression. A file is routed to the first
+	 * sub-pool, in the order they were added, whose pattern matches it, and
+	 * stays in this pool if none does. For example, a pool large enough to
+	 * keep the catalog files resident can be set up with the pattern
+	 * <code>(tblcat|fldcat|viewcat|idxcat)\.tbl</code>, and a small pool can
+	 * recycle the buffers of a table that is only ever scanned.
+	 * <p>
+	 * A sub-pool is a buffer manager in its own right, with its own
+	 * statistics and, once {@link #registerMBean()} has been called, its own
+	 * {@link BufferPoolMXBean}. It starts with a single partition and no page
+	 * cleaner or read-ahead; these, and its size, can be changed through
+	 * {@link #pool(String)}. Sub-pools are meant to be added when the buffer
+	 * manager is set up, before any block of a matching file is pinned.
+	 * 
+	 * @param name
+	 *            the name of the sub-pool
+	 * @param fileRegex
+	 *            the pattern of the names of the files it holds
+	 * @param numbuffers
+	 *            the number of buffers of the sub-pool
+	 * @param policy
+	 *            creates the replacement policy of the sub-pool
+	 * @return the new sub-pool
+	 * @throws IllegalArgumentException
+	 *             if a sub-pool of that name exists already
+	 * @throws IllegalStateException
+	 *             if a block of a matching file is already in this pool
+	 */
+	public synchronized BufferMgr addPool(String name, String fileRegex, int numbuffers,
+			ReplacementPolicy.Factory policy) {
+		if (pool(name) != null)
+			throw new IllegalArgumentException("duplicate pool " + name);
+		Pattern pattern = Pattern.compile(fileRegex);
+		for (BasicBufferMgr partition : partitions)
+			if (partition.holdsFile(pattern))
+				throw new IllegalStateException("blocks matching " + fileRegex + " are already in the pool");
+		BufferMgr pool = new BufferMgr(numbuffers, 1, offHeap, policy);
+		pool.pinQuota = pinQuota;
+		SubPool[] subPools = poolTable.subPools;
+		subPools = Arrays.copyOf(subPools, subPools.length + 1);
+		subPools[subPools.length - 1] = new SubPool(name, pattern, pool);
+		poolTable = new PoolTable(subPools);
+		if (mbeanRegistered)
+			pool.registerMBean(MBEAN_NAME + ",pool=" + name);
+		return pool;
+	}
+
+	/**
+	 * Returns the sub-pool of the specified name, or null if there is none.
+	 * 
+	 * @param name
+	 *            the name of the sub-pool
+	 * @return the sub-pool, or null
+	 */
+	public BufferMgr pool(String name) {
+		for (SubPool sub : poolTable.subPools)
+			if (sub.name.equals(name))
+				return sub.pool;
+		return null;
+	}
+
+	/**
+	 * Returns the names of the sub-pools, in the order they were added.
+	 * 
+	 * @return the names of the sub-pools
+	 */
+	public String[] poolNames() {
+		SubPool[] subPools = poolTable.subPools;
+		String[] names = new String[subPools.length];
+		for (int i = 0; i < subPools.length; i++)
+			names[i] = subPools[i].name;
+		return names;
+	}
+
+	/**
+	 * Registers the pool's {@link BufferPoolMXBean} with the platform MBean
+	 * server under the name {@value #MBEAN_NAME}, replacing the bean of any
+	 * pool registered before. Each sub-pool's bean is registered under the
+	 * same name with a <code>pool</code> key added, such as
+	 * <code>simpledb:type=BufferPool,pool=keep</code>.
+	 */
+	public synchronized void registerMBean() {
+		registerMBean(MBEAN_NAME);
+		for (SubPool sub : poolTable.subPools)
+			sub.pool.registerMBean(MBEAN_NAME + ",pool=" + sub.name);
+		mbeanRegistered = true;
+	}
+
+	private void registerMBean(String beanName) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(beanName);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(new BufferPoolMonitor(this, metrics), name);
+		} catch (JMException e) {
+			throw new RuntimeException("cannot register " + beanName, e);
+		}
+	}
+
+	/**
+	 * Returns the number of partitions the pool is split into.
+	 * 
+	 * @return the number of partitions
+	 */
+	public int partitionCount() {
+		return partitions.length;
+	}
+
+	// CSC-540 Buffer Management Waits for the future of a blocking pin. A
+	// pin that failed, such as one that timed out, throws its own exception.
+	private static Buffer join(CompletableFuture<Buffer> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	// CSC-540 Buffer Management Pins the blocks at the specified positions,
+	// all of which belong to this pool, storing each buffer at the same
+	// position of buffs. Each missing block is read once, even if listed
+	// more than once.
+	private void pinBatch(Block[] blks, List<Integer> positions, Buffer[] buffs) {
+		TreeMap<Block, List<Integer>> misses = new TreeMap<Block, List<Integer>>(DirtyBufferTable.BLOCK_ORDER);
+		for (int i : positions) {
+			List<Integer> same = misses.get(blks[i]);
+			if (same == null && (buffs[i] = partitionFor(blks[i]).pinIfPresent(blks[i])) != null)
+				continue;
+			if (same == null) {
+				same = new ArrayList<Integer>();
+				misses.put(blks[i], same);
+			}
+			same.add(i);
+		}
+		if (misses.isEmpty())
+			return;
+		Block[] missing = misses.keySet().toArray(new Block[misses.size()]);
+		Buffer[] frames = new Buffer[missing.length];
+		BasicBufferMgr[] donors = new BasicBufferMgr[missing.length];
+		if (!reserve(frames, donors))
+			throw new BufferAbortException();
+		// Each missing block is mapped to its frame as loading before it is
+		// read, so that nobody else reads it meanwhile, or pinned where it
+		// is if somebody brought it in since it was missed
+		Buffer[] got = new Buffer[missing.length];
+		for (int k = 0; k < missing.length; k++) {
+			BasicBufferMgr partition = partitionFor(missing[k]);
+			got[k] = partition.adoptLoading(missing[k], frames[k]);
+			if (got[k] != frames[k])
+				passOn(frames[k], partition);
+		}
+		try {
+			int start = -1;
+			for (int k = 0; k <= missing.length; k++) {
+				boolean loading = k < missing.length && got[k] == frames[k];
+				if (start >= 0 && (!loading || !missing[k].fileName().equals(missing[k - 1].fileName())
+						|| missing[k].number() != missing[k - 1].number() + 1
+						|| isMapped(missing[k]) != isMapped(missing[start]))) {
+					readRun(missing, frames, start, k);
+					start = -1;
+				}
+				if (loading && start < 0)
+					start = k;
+			}
+			// Blocks being read by another thread are pinned once read
+			for (int k = 0; k < missing.length; k++)
+				if (got[k] == null && (got[k] = partitionFor(missing[k]).pin(missing[k])) == null)
+					throw new BufferAbortException();
+		} catch (RuntimeException e) {
+			for (int k = 0; k < missing.length; k++) {
+				if (got[k] == frames[k] && frames[k].isLoading())
+					partitionFor(missing[k]).loaded(frames[k], false);
+				else if (got[k] != null)
+					unpin(got[k]);
+			}
+			throw e;
+		}
+		for (int k = 0; k < missing.length; k++) {
+			List<Integer> same = misses.get(missing[k]);
+			buffs[same.get(0)] = got[k];
+			for (int j = 1; j < same.size(); j++)
+				buffs[same.get(j)] = partitionFor(missing[k]).pinIfPresent(missing[k]);
+		}
+	}
+
+	// CSC-540 Buffer Management Takes an unpinned buffer for each slot of
+	// frames, round-robin over the partitions, noting where each came from.
+	// If too few are unpinned, the buffers taken are given back and false is
+	// returned.
+	private boolean reserve(Buffer[] frames, BasicBufferMgr[] donors) {
+		if (available() < frames.length)
+			return false;
+		int p = 0;
+		for (int k = 0; k < frames.length; k++) {
+			for (int i = 0; frames[k] == null && i < partitions.length; i++) {
+				donors[k] = partitions[p];
+				frames[k] = partitions[p].surrender();
+				p = (p + 1) % partitions.length;
+			}
+			if (frames[k] == null) {
+				for (int j = 0; j < k; j++)
+					handOff(frames[j], donors[j]);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isMapped(Block blk) {
+		return mappedFiles.view(blk) != null;
+	}
+
+	// CSC-540 Buffer Management Reads the consecutive blocks missing[start]
+	// to missing[end - 1] of one file into their loading frames, and ends
+	// their loading. A run of more than one off-heap frame, of a file that
+	// is not memory-mapped, is read with a single scattering read; other
+	// blocks are read or mapped one by one.
+	private void readRun(Block[] missing, Buffer[] frames, int start, int end) {
+		if (end - start > 1 && frames[start].frame() != null && !isMapped(missing[start])) {
+			ByteBuffer[] bbs = new ByteBuffer[end - start];
+			for (int k = start; k < end; k++)
+				bbs[k - start] = frames[k].frame();
+			BlockIO.read(missing[start], bbs);
+		} else {
+			for (int k = start; k < end; k++)
+				frames[k].finishLoading();
+		}
+		for (int k = start; k < end; k++)
+			partitionFor(missing[k]).loaded(frames[k], true);
+	}
+
+	// CSC-540 Buffer Management Starts an asynchronous request held back by
+	// the page cleaner once the cleaner lets it go, unless it was cancelled
+	// meanwhile: pins at once if a buffer is available, and otherwise queues
+	// the request.
+	private CompletableFuture<Buffer> startAsync(final Waiter w, CompletableFuture<Void> held, final long maxWait) {
+		held.thenRunAsync(new Runnable() {
+			public void run() {
+				if (w.future.isDone())
+					return;
+				try {
+					Buffer buff = w.isPinNew() ? tryPinNew(w.filename, w.fmtr) : tryPin(FileRegistry.key(w.blk), w.blk);
+					if (buff == null)
+						awaitAsync(w, maxWait);
+					else if (!w.future.complete(buff))
+						unpin(buff);
+				} catch (RuntimeException e) {
+					w.future.completeExceptionally(e);
+				}
+			}
+		}, asyncIo);
+		return w.future;
 	}
 
-	private boolean waitingTooLong(long starttime) {
-		return System.currentTimeMillis() - starttime > MAX_TIME;
+	// CSC-540 Buffer Management Queues an asynchronous request. The future is
+	// completed by deliver when a buffer is handed to the request, or by the
+	// timeout task if the deadline passes first. If the block is pinned here
+	// after all, a buffer handed to the request meanwhile is deliver's to
+	// pass on, and whichever pin completes the future second is undone.
+	private CompletableFuture<Buffer> awaitAsync(final Waiter w, long maxWait) {
+		synchronized (waiters) {
+			waiters.add(w);
+			numWaiters++;
+		}
+		Buffer buff = w.isPinNew() ? tryPinNew(w.filename, w.fmtr) : tryPin(FileRegistry.key(w.blk), w.blk);
+		if (buff != null) {
+			withdraw(w);
+			metrics.waited(System.nanoTime() - w.start, false);
+			EventTracer.trace(EventTracer.WAIT, w.blk, buff, -1, -1);
+			if (!w.future.complete(buff))
+				unpin(buff);
+			return w.future;
+		}
+		w.timeout = timeouts.schedule(new Runnable() {
+			public void run() {
+				if (withdraw(w))
+					return; // a buffer was handed to it
+				metrics.waited(System.nanoTime() - w.start, true);
+				EventTracer.trace(EventTracer.ABORT, w.blk, null, -1, -1);
+				w.future.completeExceptionally(new BufferAbortException());
+			}
+		}, maxWait, TimeUnit.MILLISECONDS);
+		return w.future;
+	}
+
+	// CSC-540 Buffer Management Pins the block of an asynchronous request with
+	// the buffer handed to it, away from the thread that unpinned the buffer.
+	// If the request was satisfied meanwhile, the buffer is passed on.
+	private void deliver(final Waiter w) {
+		asyncIo.execute(new Runnable() {
+			public void run() {
+				ScheduledFuture<?> t = w.timeout;
+				if (t != null)
+					t.cancel(false);
+				if (w.future.isDone()) {
+					handOff(w.frame, homeOf(w.frame));
+					return;
+				}
+				metrics.waited(System.nanoTime() - w.start, false);
+				EventTracer.trace(EventTracer.WAIT, w.blk, w.frame, -1, -1);
+				try {
+					Buffer buff = w.isPinNew() ? pinNewWith(w.filename, w.fmtr, w.frame) : pinWith(w.blk, w.frame);
+					if (!w.future.complete(buff))
+						unpin(buff);
+				} catch (RuntimeException e) {
+					w.future.completeExceptionally(e);
+				}
+			}
+		});
+	}
+
+	// CSC-540 Buffer Management Takes the request off the wait queue. Returns
+	// true if a buffer was handed to it; a buffer handed to a request that no
+	// longer needs it is passed on.
+	private boolean withdraw(Waiter w) {
+		synchronized (waiters) {
+			if (waiters.remove(w)) {
+				numWaiters--;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// CSC-540 Buffer Management If threads are waiting, takes the unpinned
+	// buffer away from its partition and hands it to the longest waiting one.
+	private void passOn(Buffer buff, BasicBufferMgr partition) {
+		if (numWaiters > 0) {
+			Buffer frame = partition.surrender(buff);
+			if (frame != null)
+				handOff(frame, partition);
+		}
+	}
+
+	// CSC-540 Buffer Management Gives a surrendered buffer to the longest
+	// waiting thread, or back to the donor if nobody is waiting any more.
+	private void handOff(Buffer frame, BasicBufferMgr donor) {
+		Waiter w;
+		synchronized (waiters) {
+			w = waiters.poll();
+			if (w != null) {
+				numWaiters--;
+				w.frame = frame;
+			}
+		}
+		if (w == null)
+			donor.adopt(frame);
+		else
+			deliver(w);
+	}
+
+	// CSC-540 Buffer Management Adds new buffers round-robin over the
+	// partitions, handing each to a waiting thread if there is one. The ids
+	// of retired buffers are used first, each in the partition it came from.
+	private void grow(int count) {
+		PageArena arena = offHeap ? new PageArena(count) : null;
+		for (int i = 0; i < count; i++) {
+			int id = frames.reuse();
+			if (id < 0)
+				id = nextBufferIndex++;
+			BasicBufferMgr partition = homeOf(id);
+			Buffer frame = partition.newBuffer(id, arena, i);
+			numbuffers++;
+			handOff(frame, partition);
+		}
+	}
+
+	// CSC-540 Buffer Management Retires unpinned buffers, taken in turn from
+	// each partition, until count are gone or the time is up. A retired
+	// buffer belongs to no partition; its id is released for reuse and its
+	// off-heap page, if any, goes back to its arena.
+	private void shrink(int count, long maxWait) {
+		long deadline = System.nanoTime() + maxWait * 1000000L;
+		int p = 0;
+		while (count > 0) {
+			Buffer frame = null;
+			for (int i = 0; frame == null && i < partitions.length; i++, p = (p + 1) % partitions.length)
+				frame = partitions[p].surrender();
+			if (frame != null) {
+				frames.release(frame.bufferIndex);
+				numbuffers--;
+				count--;
+			} else if (System.nanoTime() < deadline)
+				LockSupport.parkNanos(this, RETIRE_RETRY * 1000000L);
+			else
+				return;
+		}
+	}
+
+	// CSC-540 Buffer Management Pins the block using a handed-off buffer. If
+	// the block was loaded by someone else meanwhile, the buffer is passed on.
+	// If that load failed and the buffer has been taken meanwhile, the pin
+	// starts over.
+	private Buffer pinWith(Block blk, Buffer frame) {
+		BasicBufferMgr partition = partitionFor(blk);
+		Buffer buff = partition.pin(blk, frame);
+		if (buff != frame)
+			passOn(frame, partition);
+		return buff != null ? buff : pin(blk);
+	}
+
+	// CSC-540 Buffer Management Counts a pin by the transaction against its
+	// quota, and takes one of its reserved frames for it if it has any left.
+	// Returns null if it has none. Pins are counted only while there is a
+	// quota or the transaction has reserved frames. A frame the reservation
+	// is owed is taken out of the pool first, if a buffer is unpinned.
+	private Buffer claim(int txnum) {
+		synchronized (reservations) {
+			Reservation r = reservations.get(txnum);
+			if (r == null || !r.frames.isEmpty() || r.owed == 0)
+				return claim(txnum, r);
+			r.owed--;
+		}
+		Buffer[] frame = new Buffer[1];
+		BasicBufferMgr[] donor = new BasicBufferMgr[1];
+		boolean found = reserve(frame, donor);
+		synchronized (reservations) {
+			Reservation r = reservations.get(txnum);
+			if (r != null) {
+				if (found)
+					r.frames.add(frame[0]);
+				else
+					r.owed++;
+				return claim(txnum, r);
+			}
+		}
+		if (found)
+			handOff(frame[0], donor[0]); // released meanwhile
+		return claim(txnum);
+	}
+
+	// CSC-540 Buffer Management The part of claim done with the
+	// reservations lock held, given the transaction's reservation or null.
+	private Buffer claim(int txnum, Reservation r) {
+		int quota = pinQuota;
+		if (r == null) {
+			if (quota <= 0)
+				return null;
+			r = new Reservation();
+			reservations.put(txnum, r);
+		}
+		if (r.frames.isEmpty() && quota > 0 && r.held - r.funded >= quota)
+			throw new BufferAbortException();
+		r.held++;
+		if (r.frames.isEmpty())
+			return null;
+		r.funded++;
+		return r.frames.pop();
+	}
+
+	// CSC-540 Buffer Management Undoes the count of a pin that failed. Its
+	// frame, if it had one, is lost to the reservation, since it may have
+	// joined a partition already.
+	private void unclaim(int txnum, Buffer frame) {
+		synchronized (reservations) {
+			Reservation r = reservations.get(txnum);
+			if (r != null) {
+				r.held--;
+				if (frame != null && r.funded > 0)
+					r.funded--;
+				if (r.isEmpty())
+					reservations.remove(txnum);
+			}
+		}
+	}
+
+	// CSC-540 Buffer Management Records that a pin counted by claim is held
+	// on the buffer, so that unpin with the transaction's number finds it.
+	private void count(int txnum, Buffer buff) {
+		synchronized (reservations) {
+			Reservation r = reservations.get(txnum);
+			if (r != null)
+				r.pinned.add(buff);
+		}
+	}
+
+	private Buffer pinNewWith(String filename, PageFormatter fmtr, Buffer frame) {
+		int p = expectedPartition(filename);
+		return relocate(partitions[p].pinNew(filename, fmtr, frame), p);
+	}
+
+	// CSC-540 Buffer Management Writes back the lowest-LSN dirty unpinned
+	// buffer of the next partition that has one. The write happens outside
+	// the partition's lock. Returns false if no unpinned buffer is dirty.
+	boolean cleanOne() {
+		for (int i = 0; i < partitions.length; i++) {
+			nextToClean = (nextToClean + 1) % partitions.length;
+			Buffer buff = partitions[nextToClean].pinForCleaning();
+			if (buff != null) {
+				buff.flush();
+				unpin(buff);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// CSC-540 Buffer Management Collects the blocks of the pool and its
+	// sub-pools with their heat.
+	private void residents(Map<Block, Integer> heat) {
+		for (BasicBufferMgr partition : partitions)
+			partition.residents(heat);
+		for (SubPool sub : poolTable.subPools)
+			sub.pool.residents(heat);
+	}
+
+	// CSC-540 Buffer Management Reads a block ahead of its pin. Nothing is
+	// read while threads are waiting for a buffer.
+	boolean prefetch(Block blk) {
+		BufferMgr pool = poolFor(blk.fileName());
+		if (pool != this)
+			return pool.prefetch(blk);
+		if (numWaiters > 0)
+			return false;
+		return partitionFor(blk).prefetch(blk);
+	}
+
+	// CSC-540 Buffer Management Reads a block reloaded at startup as an
+	// ordinary resident. Nothing is read while threads are waiting for a
+	// buffer.
+	boolean preload(Block blk) {
+		BufferMgr pool = poolFor(blk.fileName());
+		if (pool != this)
+			return pool.preload(blk);
+		if (numWaiters > 0)
+			return false;
+		return partitionFor(blk).preload(blk);
+	}
+
+	private void throttle() {
+		PageCleaner c = cleaner;
+		if (c != null)
+			c.throttle();
+	}
+
+	// CSC-540 Buffer Management A future that completes when the page
+	// cleaner lets an asynchronous pin go ahead, or null if it need not wait.
+	private CompletableFuture<Void> throttleAsync() {
+		PageCleaner c = cleaner;
+		return c == null ? null : c.throttleAsync();
+	}
+
+	// CSC-540 Buffer Management Pins the block in its partition, taking a
+	// buffer from a neighbouring partition if its own has none unpinned. The
+	// block reference may be null, and is then created only on a miss.
+	private Buffer tryPin(long key, Block blk) {
+		int home = partitionIndex(key);
+		Buffer buff = partitions[home].pin(key, blk);
+		for (int i = 1; buff == null && i < partitions.length; i++) {
+			Buffer donated = partitions[(home + i) % partitions.length].surrender();
+			if (donated != null)
+				buff = partitions[home].pin(key, blk, donated);
+		}
+		return buff;
+	}
+
+	// CSC-540 Buffer Management The new block's number is not known until it
+	// is appended, so the block is created in the partition of its expected
+	// number and moved if a concurrent append gave it a different one.
+	private Buffer tryPinNew(String filename, PageFormatter fmtr) {
+		int p = expectedPartition(filename);
+		Buffer buff = partitions[p].pinNew(filename, fmtr);
+		for (int i = 1; buff == null && i < partitions.length; i++) {
+			Buffer donated = partitions[(p + i) % partitions.length].surrender();
+			if (donated != null)
+				buff = partitions[p].pinNew(filename, fmtr, donated);
+		}
+		if (buff == null)
+			return null;
+		return relocate(buff, p);
+	}
+
+	// CSC-540 Buffer Management Moves a newly pinned block from partition p
+	// to the partition it hashes to, if they differ.
+	private Buffer relocate(Buffer buff, int p) {
+		int home = partitionIndex(buff.block());
+		if (home != p) {
+			partitions[p].detachPinned(buff);
+			Buffer moved = partitions[home].adoptPinned(buff);
+			if (moved != buff)
+				passOn(buff, partitions[home]);
+			buff = moved;
+		}
+		return buff;
+	}
+
+	// CSC-540 Buffer Management The partition that the next block appended to
+	// the file is expected to hash to.
+	private int expectedPartition(String filename) {
+		if (partitions.length == 1)
+			return 0;
+		return partitionIndex(new Block(filename, SimpleDB.fileMgr().size(filename)));
+	}
+
+	// CSC-540 Buffer Management The pool that holds the blocks of the file.
+	// Each file name is matched against the patterns once, and the outcome
+	// is remembered.
+	private BufferMgr poolFor(String filename) {
+		PoolTable t = poolTable;
+		if (t.subPools.length == 0)
+			return this;
+		BufferMgr pool = t.routes.get(filename);
+		if (pool == null) {
+			pool = this;
+			for (SubPool sub : t.subPools)
+				if (sub.pattern.matcher(filename).matches()) {
+					pool = sub.pool;
+					break;
+				}
+			t.routes.put(filename, pool);
+		}
+		return pool;
+	}
+
+	// CSC-540 Buffer Management The partition a buffer was first given to:
+	// the one whose id range holds it, as laid out by the constructor, or for
+	// a buffer added by grow, the one grow gave it to.
+	private BasicBufferMgr homeOf(Buffer frame) {
+		return homeOf(frame.bufferIndex);
+	}
+
+	private BasicBufferMgr homeOf(int id) {
+		int n = partitions.length;
+		if (id >= initialSize)
+			return partitions[id % n];
+		int size = initialSize / n;
+		int larger = initialSize % n; // the first partitions have one more
+		if (id < larger * (size + 1))
+			return partitions[id / (size + 1)];
+		return partitions[larger + (id - larger * (size + 1)) / size];
+	}
+
+	private BasicBufferMgr partitionFor(Block blk) {
+		return partitions[partitionIndex(blk)];
+	}
+
+	// CSC-540 Buffer Management Consecutive blocks of a file go to
+	// consecutive partitions, so a scan is spread over all of them.
+	// Block.hashCode() builds a string, so it is not used here.
+	private int partitionIndex(Block blk) {
+		if (partitions.length == 1)
+			return 0;
+		return partitionIndex(FileRegistry.key(blk));
+	}
+
+	private int partitionIndex(long key) {
+		if (partitions.length == 1)
+			return 0;
+		int h = FileRegistry.fileId(key) * 31 + FileRegistry.blockNumber(key);
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % partitions.length;
+	}
+
+	// CSC-540 Buffer Management A request waiting for a buffer. Exactly one of
+	// blk and filename is set, depending on whether it came from pin or
+	// pinNew. The future is completed when the request is pinned; a blocking
+	// pin waits for it.
+	private static class Waiter {
+		final long start = System.nanoTime();
+		final Block blk;
+		final String filename;
+		final PageFormatter fmtr;
+		final CompletableFuture<Buffer> future = new CompletableFuture<Buffer>();
+		volatile Buffer frame = null;
+		volatile ScheduledFuture<?> timeout = null;
+
+		Waiter(Block blk, String filename, PageFormatter fmtr) {
+			this.blk = blk;
+			this.filename = filename;
+			this.fmtr = fmtr;
+		}
+
+		boolean isPinNew() {
+			return blk == null;
+		}
+	}
+
+	// CSC-540 Buffer Management The frames a transaction has reserved and not
+	// yet used, the pins it holds and the buffers they are on, and how many
+	// of those pins used a reserved frame.
+	private static class Reservation {
+		final ArrayDeque<Buffer> frames = new ArrayDeque<Buffer>();
+		final ArrayList<Buffer> pinned = new ArrayList<Buffer>();
+		int held = 0;
+		int funded = 0;
+		// Frames the reservation could not take back when pins were
+		// unpinned, because every buffer was pinned
+		int owed = 0;
+
+		boolean isEmpty() {
+			return held <= 0 && frames.isEmpty() && funded == 0 && owed == 0;
+		}
+	}
+
+	// CSC-540 Buffer Management A named sub-pool and the pattern of the file
+	// names it holds.
+	private static class SubPool {
+		final String name;
+		final Pattern pattern;
+		final BufferMgr pool;
+
+		SubPool(String name, Pattern pattern, BufferMgr pool) {
+			this.name = name;
+			this.pattern = pattern;
+			this.pool = pool;
+		}
+	}
+
+	// CSC-540 Buffer Management The sub-pools, together with the routes
+	// worked out from them, so that a route is never remembered against the
+	// wrong set of pools.
+	private static class PoolTable {
+		final SubPool[] subPools;
+		final ConcurrentHashMap<String, BufferMgr> routes = new ConcurrentHashMap<String, BufferMgr>();
+
+		PoolTable(SubPool[] subPools) {
+			this.subPools = subPools;
+		}
 	}
 }
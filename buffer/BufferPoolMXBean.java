@@ -0,0 +1,121 @@
+package simpledb.buffer;
+
+/**
+ * The management interface of a buffer pool, through which its counters and
+ * gauges can be read over JMX. The counters run from the creation of the
+ * pool. See {@link BufferMgr#registerMBean()}.
+ */
+public interface BufferPoolMXBean {
+
+	/**
+	 * Returns the number of buffers in the pool.
+	 * 
+	 * @return the number of buffers
+	 */
+	int getBufferCount();
+
+	/**
+	 * Returns the number of unpinned buffers.
+	 * 
+	 * @return the number of available buffers
+	 */
+	int getAvailableBuffers();
+
+	/**
+	 * Returns the number of dirty buffers, pinned or not.
+	 * 
+	 * @return the number of dirty buffers
+	 */
+	int getDirtyBuffers();
+
+	/**
+	 * Returns the number of pins of a block that was already in the pool.
+	 * 
+	 * @return the number of hits
+	 */
+	long getHits();
+
+	/**
+	 * Returns the number of pins that had to read their block.
+	 * 
+	 * @return the number of misses
+	 */
+	long getMisses();
+
+	/**
+	 * Returns the fraction of pins that were hits, or 0 if there were none.
+	 * 
+	 * @return the hit ratio
+	 */
+	double getHitRatio();
+
+	/**
+	 * Returns the number of new blocks appended through the pool.
+	 * 
+	 * @return the number of new blocks
+	 */
+	long getNewBlocks();
+
+	/**
+	 * Returns the number of blocks removed from the pool whose pages were
+	 * clean.
+	 * 
+	 * @return the number of clean evictions
+	 */
+	long getCleanEvictions();
+
+	/**
+	 * Returns the number of blocks removed from the pool whose pages had to
+	 * be written back first.
+	 * 
+	 * @return the number of dirty evictions
+	 */
+	long getDirtyEvictions();
+
+	/**
+	 * Returns the number of pins that had to wait for a buffer.
+	 * 
+	 * @return the number of waits
+	 */
+	long getPinWaits();
+
+	/**
+	 * Returns the number of pins aborted because no buffer became available
+	 * in time.
+	 * 
+	 * @return the number of timeouts
+	 */
+	long getTimeoutAborts();
+
+	/**
+	 * Returns the histogram of the time pins spent waiting. Bucket 0 counts
+	 * waits under a microsecond, and bucket i waits from 2<sup>i-1</sup> up to
+	 * 2<sup>i</sup> microseconds.
+	 * 
+	 * @return the count in each bucket
+	 */
+	long[] getPinWaitHistogram();
+
+	/**
+	 * Returns the number of dirty pages written back.
+	 * 
+	 * @return the number of flushes
+	 */
+	long getFlushes();
+
+	/**
+	 * Returns the mean time to write back a dirty page, including the log
+	 * force before it, in microseconds.
+	 * 
+	 * @return the mean flush latency
+	 */
+	double getMeanFlushMicros();
+
+	/**
+	 * Returns the histogram of flush latencies, with the same buckets as
+	 * {@link #getPinWaitHistogram()}.
+	 * 
+	 * @return the count in each bucket
+	 */
+	long[] getFlushLatencyHistogram();
+}
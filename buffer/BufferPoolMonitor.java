@@ -0,0 +1,79 @@
+package simpledb.buffer;
+
+/**
+ * Exposes the counters and gauges of a {@link BufferMgr} as a
+ * {@link BufferPoolMXBean}. Every attribute is read without taking a
+ * partition lock, so scraping the bean does not stall the pool.
+ */
+class BufferPoolMonitor implements BufferPoolMXBean {
+	private final BufferMgr pool;
+	private final BufferMetrics metrics;
+
+	BufferPoolMonitor(BufferMgr pool, BufferMetrics metrics) {
+		this.pool = pool;
+		this.metrics = metrics;
+	}
+
+	public int getBufferCount() {
+		return pool.size();
+	}
+
+	public int getAvailableBuffers() {
+		return pool.available();
+	}
+
+	public int getDirtyBuffers() {
+		return pool.dirtyCount();
+	}
+
+	public long getHits() {
+		return metrics.hits.sum();
+	}
+
+	public long getMisses() {
+		return metrics.misses.sum();
+	}
+
+	public double getHitRatio() {
+		long hits = metrics.hits.sum();
+		long total = hits + metrics.misses.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public long getNewBlocks() {
+		return metrics.newBlocks.sum();
+	}
+
+	public long getCleanEvictions() {
+		return metrics.cleanEvictions.sum();
+	}
+
+	public long getDirtyEvictions() {
+		return metrics.dirtyEvictions.sum();
+	}
+
+	public long getPinWaits() {
+		return metrics.waits.sum();
+	}
+
+	public long getTimeoutAborts() {
+		return metrics.timeouts.sum();
+	}
+
+	public long[] getPinWaitHistogram() {
+		return metrics.waitHistogram();
+	}
+
+	public long getFlushes() {
+		return metrics.flushes.sum();
+	}
+
+	public double getMeanFlushMicros() {
+		long flushes = metrics.flushes.sum();
+		return flushes == 0 ? 0 : metrics.flushNanos.sum() / 1000.0 / flushes;
+	}
+
+	public long[] getFlushLatencyHistogram() {
+		return metrics.flushHistogram();
+	}
+}
@@ -0,0 +1,104 @@
+package simpledb.buffer;
+
+/**
+ * The CLOCK policy, an approximation of LRU that does no work on a hit beyond
+ * setting a bit. The resident buffers form a ring that a hand sweeps over.
+ * Each pin sets the buffer's reference bit; the hand passes over pinned
+ * buffers, clears the bit of each referenced buffer it passes, and stops at
+ * the first unpinned buffer whose bit is clear, which is the victim. A buffer
+ * keeps its place in the ring while it is pinned; a buffer that is new to the
+ * ring is placed just behind the hand, so it is the last to be looked at.
+ */
+class ClockPolicy implements ReplacementPolicy {
+	private static final int IN_RING = 1;
+
+	// The ring, stored as a list whose end wraps around to its start.
+	private BufferList ring = new BufferList();
+	private Buffer hand = null;
+	// The number of unpinned buffers in the ring.
+	private int candidates = 0;
+
+	public void accessed(Buffer buff) {
+		buff.policyState = Boolean.TRUE;
+	}
+
+	public void pinned(Buffer buff) {
+		if (buff.queue == IN_RING)
+			candidates--;
+	}
+
+	public void unpinned(Buffer buff) {
+		if (buff.queue != IN_RING) {
+			ring.insertBefore(hand, buff);
+			buff.queue = IN_RING;
+		}
+		candidates++;
+	}
+
+	public void dirtied(Buffer buff) {
+	}
+
+	public void flushed(Buffer buff) {
+	}
+
+	public void evicted(Buffer buff) {
+		if (buff.queue == IN_RING) {
+			if (!buff.isPinned())
+				candidates--;
+			if (hand == buff)
+				hand = ring.size() > 1 ? next(buff) : null;
+			ring.remove(buff);
+			buff.queue = Buffer.NOT_QUEUED;
+		}
+		buff.policyState = null;
+	}
+
+	public void detached(Buffer buff) {
+		evicted(buff);
+	}
+
+	public void prefetched(Buffer buff) {
+		evicted(buff);
+		ring.insertBefore(hand, buff);
+		buff.queue = IN_RING;
+		candidates++;
+		hand = buff;
+	}
+
+	public Buffer chooseVictim() {
+		if (candidates == 0)
+			return null;
+		if (hand == null)
+			hand = ring.first();
+		// Ends within two turns, since each unpinned buffer passed is cleared
+		while (hand.isPinned() || hand.policyState != null) {
+			if (!hand.isPinned())
+				hand.policyState = null;
+			hand = next(hand);
+		}
+		return hand;
+	}
+
+	public Buffer chooseDirty(int limit) {
+		Buffer buff = hand != null ? hand : ring.first();
+		for (int i = 0; i < Math.min(limit, ring.size()); i++, buff = next(buff)) {
+			if (!buff.isPinned() && buff.modifiedBy() >= 0)
+				return buff;
+		}
+		return null;
+	}
+
+	public Buffer chooseClean(int limit) {
+		Buffer buff = hand != null ? hand : ring.first();
+		for (int i = 0; i < Math.min(limit, ring.size()); i++, buff = next(buff)) {
+			if (!buff.isPinned() && buff.policyState == null && !buff.prefetched && buff.modifiedBy() < 0)
+				return buff;
+		}
+		return null;
+	}
+
+	// The buffer after the specified one, going around the ring.
+	private Buffer next(Buffer buff) {
+		return buff.nextUnpinned != null ? buff.nextUnpinned : ring.first();
+	}
+}
@@ -0,0 +1,124 @@
+package simpledb.buffer;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.file.Block;
+
+/**
+ * Keeps track of the dirty buffers of a pool, both as a count and indexed by
+ * the transaction that modified them. A buffer reports itself when it becomes
+ * dirty or clean, so committing a transaction only has to look at the buffers
+ * that transaction modified rather than at the whole pool.
+ */
+class DirtyBufferTable {
+	// Orders blocks by file name and then block number.
+	static final Comparator<Block> BLOCK_ORDER = new Comparator<Block>() {
+		public int compare(Block b1, Block b2) {
+			int c = b1.fileName().compareTo(b2.fileName());
+			if (c != 0)
+				return c;
+			return b1.number() < b2.number() ? -1 : (b1.number() == b2.number() ? 0 : 1);
+		}
+	};
+
+	private final AtomicInteger count = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, Set<Buffer>> byTx = new ConcurrentHashMap<Integer, Set<Buffer>>();
+
+	/**
+	 * Records that the buffer has been modified by a transaction.
+	 * 
+	 * @param buff
+	 *            the modified buffer
+	 * @param oldTx
+	 *            the transaction that had modified it before, or a negative
+	 *            number if it was clean
+	 * @param newTx
+	 *            the transaction that modified it now
+	 */
+	void dirtied(Buffer buff, int oldTx, int newTx) {
+		if (oldTx < 0)
+			count.incrementAndGet();
+		else
+			remove(buff, oldTx);
+		add(buff, newTx);
+	}
+
+	/**
+	 * Records that the buffer, modified by the specified transaction, has
+	 * been written to disk.
+	 * 
+	 * @param buff
+	 *            the buffer
+	 * @param txnum
+	 *            the transaction that had modified it
+	 */
+	void cleaned(Buffer buff, int txnum) {
+		count.decrementAndGet();
+		remove(buff, txnum);
+	}
+
+	/**
+	 * Removes and returns the buffers modified by the specified transaction,
+	 * ordered by the file and number of their blocks.
+	 * 
+	 * @param txnum
+	 *            the id of the transaction
+	 * @return the transaction's dirty buffers, keyed by block
+	 */
+	TreeMap<Block, Buffer> takeModifiedBy(int txnum) {
+		TreeMap<Block, Buffer> dirty = new TreeMap<Block, Buffer>(BLOCK_ORDER);
+		Set<Buffer> buffs = byTx.remove(txnum);
+		if (buffs != null) {
+			for (Buffer buff : buffs) {
+				Block blk = buff.block();
+				if (blk != null && buff.isModifiedBy(txnum))
+					dirty.put(blk, buff);
+			}
+		}
+		return dirty;
+	}
+
+	/**
+	 * Puts back a buffer returned by {@link #takeModifiedBy(int)} that is
+	 * still dirty, because it was not written back.
+	 * 
+	 * @param buff
+	 *            the buffer
+	 * @param txnum
+	 *            the transaction that modified it
+	 */
+	void restore(Buffer buff, int txnum) {
+		add(buff, txnum);
+	}
+
+	/**
+	 * Returns the number of dirty buffers.
+	 * 
+	 * @return the number of dirty buffers
+	 */
+	int count() {
+		return count.get();
+	}
+
+	private void add(Buffer buff, int txnum) {
+		Set<Buffer> buffs = byTx.get(txnum);
+		if (buffs == null) {
+			buffs = Collections.newSetFromMap(new ConcurrentHashMap<Buffer, Boolean>());
+			Set<Buffer> existing = byTx.putIfAbsent(txnum, buffs);
+			if (existing != null)
+				buffs = existing;
+		}
+		buffs.add(buff);
+	}
+
+	private void remove(Buffer buff, int txnum) {
+		Set<Buffer> buffs = byTx.get(txnum);
+		if (buffs != null)
+			buffs.remove(buff);
+	}
+}
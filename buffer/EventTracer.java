@@ -0,0 +1,193 @@
+package simpledb.buffer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.file.Block;
+
+/**
+ * Records buffer events in a preallocated ring, for later analysis. Each
+ * event is stored as a fixed-size record of primitives (the event type, the
+ * file id, block number, buffer id, transaction, LSN and the time in
+ * nanoseconds), so recording allocates nothing. File ids are those of
+ * {@link FileRegistry}, so they match the block keys of the pool. When the
+ * ring is full the oldest records are overwritten. Writers claim a slot with
+ * a single atomic increment and never block each other.
+ * <p>
+ * Tracing is off unless {@link #start(int)} has been called; the hooks then
+ * cost one static field read. {@link #dump(File)} writes the ring to a binary
+ * file in the format described there. A record being written while the ring
+ * is dumped may appear half-written in the dump.
+ */
+public class EventTracer {
+	/** A block already in the pool was pinned. */
+	public static final int PIN_HIT = 1;
+	/** A block was read into the pool and pinned. */
+	public static final int PIN_MISS = 2;
+	/** A new block was appended and pinned. */
+	public static final int PIN_NEW = 3;
+	/** A buffer was unpinned. */
+	public static final int UNPIN = 4;
+	/** A buffer was modified; the record holds the transaction and LSN. */
+	public static final int MODIFY = 5;
+	/** A dirty buffer was written to disk. */
+	public static final int FLUSH = 6;
+	/** A clean block was removed from the pool. */
+	public static final int EVICT_CLEAN = 7;
+	/** A dirty block was removed from the pool, and written back first. */
+	public static final int EVICT_DIRTY = 8;
+	/** A block was read ahead of its first pin. */
+	public static final int PREFETCH = 9;
+	/** A pin got a buffer after waiting. */
+	public static final int WAIT = 10;
+	/** A pin was aborted after waiting. */
+	public static final int ABORT = 11;
+
+	static final int MAGIC = 0x53444254; // "SDBT"
+	static final int VERSION = 1;
+	// Each record takes four longs: the time, the type and file id, the
+	// block number and buffer id, and the transaction and LSN.
+	private static final int STRIDE = 4;
+
+	private static volatile EventTracer active = null;
+
+	private final long[] ring;
+	private final int mask;
+	private final AtomicLong next = new AtomicLong();
+
+	private EventTracer(int records) {
+		int capacity = Integer.highestOneBit(Math.max(1, records - 1)) << 1;
+		ring = new long[capacity * STRIDE];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Starts recording into a new ring with room for at least the specified
+	 * number of records, discarding any earlier ring.
+	 * 
+	 * @param records
+	 *            the number of records the ring holds
+	 */
+	public static void start(int records) {
+		active = new EventTracer(records);
+	}
+
+	/**
+	 * Stops recording. The ring is discarded.
+	 */
+	public static void stop() {
+		active = null;
+	}
+
+	/**
+	 * Returns true if events are being recorded.
+	 * 
+	 * @return true if tracing is on
+	 */
+	public static boolean isTracing() {
+		return active != null;
+	}
+
+	/**
+	 * Writes the records in the ring, oldest first, to the specified file.
+	 * Recording continues meanwhile. The file is written with a
+	 * {@link DataOutputStream}: the magic number 0x53444254 and the format
+	 * version as ints; the number of files, followed by the id (an int) and
+	 * name (modified UTF-8) of each; the number of records, followed by each
+	 * record as the time (a long), the type (a byte), and the file id, block
+	 * number, buffer id, transaction and LSN (ints). A field that does not
+	 * apply to an event is -1.
+	 * 
+	 * @param f
+	 *            the file to write
+	 * @return the number of records written
+	 * @throws IOException
+	 *             if the file cannot be written
+	 * @throws IllegalStateException
+	 *             if tracing is off
+	 */
+	public static int dump(File f) throws IOException {
+		EventTracer t = active;
+		if (t == null)
+			throw new IllegalStateException("tracing is off");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			return t.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Records an event on a buffer, if tracing is on.
+	 * 
+	 * @param type
+	 *            the event type
+	 * @param blk
+	 *            the block, or null
+	 * @param buff
+	 *            the buffer, or null
+	 * @param txnum
+	 *            the transaction, or -1
+	 * @param lsn
+	 *            the LSN, or -1
+	 */
+	static void trace(int type, Block blk, Buffer buff, int txnum, int lsn) {
+		EventTracer t = active;
+		if (t != null)
+			t.record(type, blk, buff == null ? -1 : buff.bufferIndex, txnum, lsn);
+	}
+
+	private void record(int type, Block blk, int bufferIndex, int txnum, int lsn) {
+		int fileId = blk == null ? -1 : FileRegistry.fileId(blk.fileName());
+		int blknum = blk == null ? -1 : blk.number();
+		int i = (int) (next.getAndIncrement() & mask) * STRIDE;
+		ring[i] = System.nanoTime();
+		ring[i + 1] = pack(type, fileId);
+		ring[i + 2] = pack(blknum, bufferIndex);
+		ring[i + 3] = pack(txnum, lsn);
+	}
+
+	private int write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		// Every registered file, which covers every file id in the ring
+		int numFiles = FileRegistry.fileCount();
+		out.writeInt(numFiles);
+		for (int id = 0; id < numFiles; id++) {
+			out.writeInt(id);
+			out.writeUTF(FileRegistry.fileName(id));
+		}
+		long end = next.get();
+		long capacity = mask + 1;
+		long first = Math.max(0, end - capacity);
+		out.writeInt((int) (end - first));
+		for (long n = first; n < end; n++) {
+			int i = (int) (n & mask) * STRIDE;
+			out.writeLong(ring[i]);
+			out.writeByte(high(ring[i + 1]));
+			out.writeInt(low(ring[i + 1]));
+			out.writeInt(high(ring[i + 2]));
+			out.writeInt(low(ring[i + 2]));
+			out.writeInt(high(ring[i + 3]));
+			out.writeInt(low(ring[i + 3]));
+		}
+		return (int) (end - first);
+	}
+
+	private static long pack(int high, int low) {
+		return ((long) high << 32) | (low & 0xffffffffL);
+	}
+
+	private static int high(long v) {
+		return (int) (v >>> 32);
+	}
+
+	private static int low(long v) {
+		return (int) v;
+	}
+}
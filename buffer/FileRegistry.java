@@ -0,0 +1,123 @@
+package simpledb.buffer;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.file.Block;
+
+/**
+ * Gives each file name a small integer id, so that a block can be named by a
+ * single <code>long</code> key holding the file id and block number. Looking
+ * a block up by its key hashes no string and allocates nothing; see
+ * {@link BufferMgr#pin(long)}. Ids are given out in order from 0 and are never
+ * reused while the JVM runs.
+ */
+public class FileRegistry {
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] names = new String[16];
+	private static int numFiles = 0;
+
+	/**
+	 * Returns the id of the specified file, registering the file if it has
+	 * none yet.
+	 * 
+	 * @param filename
+	 *            the name of the file
+	 * @return the file id
+	 */
+	public static int fileId(String filename) {
+		Integer id = ids.get(filename);
+		return id != null ? id : register(filename);
+	}
+
+	/**
+	 * Returns the name of the file with the specified id.
+	 * 
+	 * @param fileId
+	 *            a file id
+	 * @return the name of the file
+	 */
+	public static String fileName(int fileId) {
+		return names[fileId];
+	}
+
+	/**
+	 * Returns the number of files registered so far. Their ids are 0 up to
+	 * one less than this number.
+	 * 
+	 * @return the number of files
+	 */
+	static synchronized int fileCount() {
+		return numFiles;
+	}
+
+	/**
+	 * Returns the key of the specified block of a file.
+	 * 
+	 * @param fileId
+	 *            a file id
+	 * @param blknum
+	 *            the block number
+	 * @return the key of the block
+	 */
+	public static long key(int fileId, int blknum) {
+		return ((long) fileId << 32) | (blknum & 0xffffffffL);
+	}
+
+	/**
+	 * Returns the key of the specified block.
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @return the key of the block
+	 */
+	public static long key(Block blk) {
+		return key(fileId(blk.fileName()), blk.number());
+	}
+
+	/**
+	 * Returns a new block reference for the specified key.
+	 * 
+	 * @param key
+	 *            the key of a block
+	 * @return a reference to the block
+	 */
+	public static Block block(long key) {
+		return new Block(fileName(fileId(key)), blockNumber(key));
+	}
+
+	/**
+	 * Returns the file id of a block key.
+	 * 
+	 * @param key
+	 *            the key of a block
+	 * @return the file id
+	 */
+	public static int fileId(long key) {
+		return (int) (key >>> 32);
+	}
+
+	/**
+	 * Returns the block number of a block key.
+	 * 
+	 * @param key
+	 *            the key of a block
+	 * @return the block number
+	 */
+	public static int blockNumber(long key) {
+		return (int) key;
+	}
+
+	private static synchronized int register(String filename) {
+		Integer id = ids.get(filename);
+		if (id != null)
+			return id;
+		if (numFiles == names.length)
+			names = Arrays.copyOf(names, numFiles * 2);
+		// The name is stored before the id is published, so that any id read
+		// from the map can be resolved.
+		names[numFiles] = filename;
+		ids.put(filename, numFiles);
+		return numFiles++;
+	}
+}
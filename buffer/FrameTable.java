@@ -0,0 +1,254 @@
+package simpledb.buffer;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import simpledb.server.SimpleDB;
+
+/**
+ * The descriptors of the buffers of a pool: pin count, modifying transaction,
+ * LSN, read and write counts and heat, held in parallel arrays indexed by
+ * buffer id instead of in the buffers themselves, so that a scan over the
+ * whole pool reads contiguous memory. A {@link Buffer} is a handle that keeps
+ * its chunk of the arrays and its offset in it.
+ * <p>
+ * The arrays are allocated in chunks of a fixed size as buffer ids are given
+ * out, so growing the pool never moves a chunk that buffers are using. A
+ * descriptor is written only by the thread that owns its buffer, under the
+ * same locks as before. Scans read without locking, so while the pool is in
+ * use their result is only a snapshot.
+ * <p>
+ * The table also holds the state the buffers of the pool share, such as the
+ * dirty buffer table, which a buffer reaches through its chunk rather than
+ * through references of its own.
+ * <p>
+ * When the pool shrinks, the ids of retired buffers are released: their
+ * descriptors are cleared, their off-heap pages go back to their arenas, and
+ * the ids are given out again before new ones when the pool grows.
+ */
+class FrameTable {
+	/**
+	 * One chunk of the descriptor arrays.
+	 */
+	static class Chunk {
+		final int[] pins;
+		final int[] modifiedBy; // negative means not modified
+		final int[] lsn; // negative means no corresponding log record
+		final int[] reads;
+		final int[] writes;
+		final int[] heat;
+		// The arena and page within it that hold each buffer's page, if it
+		// is held off the heap
+		final PageArena[] arenas;
+		final int[] arenaPages;
+		// The table the chunk belongs to
+		final FrameTable table;
+
+		Chunk(FrameTable table, int size) {
+			this.table = table;
+			pins = new int[size];
+			modifiedBy = new int[size];
+			lsn = new int[size];
+			reads = new int[size];
+			writes = new int[size];
+			heat = new int[size];
+			arenas = new PageArena[size];
+			arenaPages = new int[size];
+			Arrays.fill(modifiedBy, -1);
+			Arrays.fill(lsn, -1);
+		}
+	}
+
+	// Each chunk holds 4096 descriptors
+	private static final int CHUNK_BITS = 12;
+
+	private volatile Chunk[] chunks = new Chunk[0];
+	// One more than the highest buffer id given out
+	private volatile int limit = 0;
+	// The ids of retired buffers, to be given out again
+	private final ArrayDeque<Integer> freeIds = new ArrayDeque<Integer>();
+
+	// Pool-wide state shared by the buffers, each null if the pool has none
+	final DirtyBufferTable dirtyTable;
+	final MappedFiles mappedFiles;
+	final BufferMetrics metrics;
+	// Whether a page is written only after the log is forced up to its LSN
+	private final boolean logged;
+
+	/**
+	 * Creates a table for buffers that belong to no pool, and so share no
+	 * state.
+	 */
+	FrameTable() {
+		this(null, null, null);
+	}
+
+	/**
+	 * Creates a table for the buffers of a pool.
+	 * 
+	 * @param dirtyTable
+	 *            the dirty buffers of the pool
+	 * @param mappedFiles
+	 *            the files the pool serves from memory-mapped regions
+	 * @param metrics
+	 *            the event counters of the pool
+	 */
+	FrameTable(DirtyBufferTable dirtyTable, MappedFiles mappedFiles, BufferMetrics metrics) {
+		this(dirtyTable, mappedFiles, metrics, true);
+	}
+
+	/**
+	 * Creates a table for the buffers of a pool that may keep no log, such
+	 * as a pool replaying a trace. The pages of such a pool are written
+	 * without forcing the server's log.
+	 * 
+	 * @param dirtyTable
+	 *            the dirty buffers of the pool
+	 * @param mappedFiles
+	 *            the files the pool serves from memory-mapped regions
+	 * @param metrics
+	 *            the event counters of the pool
+	 * @param logged
+	 *            whether pages are written only after the log is forced
+	 */
+	FrameTable(DirtyBufferTable dirtyTable, MappedFiles mappedFiles, BufferMetrics metrics, boolean logged) {
+		this.dirtyTable = dirtyTable;
+		this.mappedFiles = mappedFiles;
+		this.metrics = metrics;
+		this.logged = logged;
+	}
+
+	/**
+	 * Forces the log up to the specified LSN before a page of the pool is
+	 * written, unless the pool keeps no log.
+	 * 
+	 * @param lsn
+	 *            the LSN of a log record; a negative LSN needs no force
+	 */
+	void forceLog(int lsn) {
+		if (logged)
+			SimpleDB.logForcer().force(lsn);
+	}
+
+	/**
+	 * Returns the chunk that holds the descriptor of the specified buffer,
+	 * allocating it if need be.
+	 * 
+	 * @param id
+	 *            the buffer id, not negative
+	 * @return the chunk
+	 */
+	synchronized Chunk chunk(int id) {
+		int c = id >> CHUNK_BITS;
+		if (c >= chunks.length) {
+			Chunk[] grown = Arrays.copyOf(chunks, Math.max(c + 1, chunks.length * 2));
+			for (int i = chunks.length; i < grown.length; i++)
+				grown[i] = new Chunk(this, 1 << CHUNK_BITS);
+			chunks = grown;
+		}
+		limit = Math.max(limit, id + 1);
+		return chunks[c];
+	}
+
+	/**
+	 * Records that the page of the specified buffer is held in an off-heap
+	 * arena, so that it can be released when the buffer is retired.
+	 * 
+	 * @param id
+	 *            the buffer id
+	 * @param arena
+	 *            the arena
+	 * @param page
+	 *            the index of the page within the arena
+	 */
+	synchronized void place(int id, PageArena arena, int page) {
+		Chunk d = chunk(id);
+		d.arenas[offset(id)] = arena;
+		d.arenaPages[offset(id)] = page;
+	}
+
+	/**
+	 * Releases the id of a retired buffer, which must no longer be used. Its
+	 * descriptor is cleared, its off-heap page, if any, is released to its
+	 * arena, and the id is kept to be given out again by {@link #reuse()}.
+	 * 
+	 * @param id
+	 *            the buffer id
+	 */
+	synchronized void release(int id) {
+		Chunk d = chunk(id);
+		int at = offset(id);
+		d.pins[at] = 0;
+		d.modifiedBy[at] = -1;
+		d.lsn[at] = -1;
+		d.reads[at] = 0;
+		d.writes[at] = 0;
+		d.heat[at] = 0;
+		if (d.arenas[at] != null) {
+			d.arenas[at].release(d.arenaPages[at]);
+			d.arenas[at] = null;
+		}
+		freeIds.push(id);
+	}
+
+	/**
+	 * Returns the id of a retired buffer to give to a new one, or -1 if
+	 * there is none.
+	 * 
+	 * @return a released buffer id, or -1
+	 */
+	synchronized int reuse() {
+		Integer id = freeIds.poll();
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Returns the offset of a buffer's descriptor in its chunk.
+	 * 
+	 * @param id
+	 *            the buffer id
+	 * @return the offset
+	 */
+	int offset(int id) {
+		return id & ((1 << CHUNK_BITS) - 1);
+	}
+
+	/**
+	 * Returns the number of pinned buffers.
+	 * 
+	 * @return the number of pinned buffers
+	 */
+	int pinnedCount() {
+		Chunk[] cs = chunks;
+		int n = limit;
+		int count = 0;
+		for (int c = 0; c < cs.length && n > 0; c++, n -= 1 << CHUNK_BITS) {
+			int[] pins = cs[c].pins;
+			for (int i = 0, end = Math.min(n, pins.length); i < end; i++)
+				if (pins[i] > 0)
+					count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the lowest LSN of any dirty buffer, or -1 if no dirty buffer
+	 * has a log record. The log must be kept from that record on until the
+	 * buffer is written.
+	 * 
+	 * @return the lowest LSN of a dirty buffer, or -1
+	 */
+	int oldestDirtyLsn() {
+		Chunk[] cs = chunks;
+		int n = limit;
+		int oldest = -1;
+		for (int c = 0; c < cs.length && n > 0; c++, n -= 1 << CHUNK_BITS) {
+			int[] modifiedBy = cs[c].modifiedBy;
+			int[] lsn = cs[c].lsn;
+			for (int i = 0, end = Math.min(n, lsn.length); i < end; i++)
+				if (modifiedBy[i] >= 0 && lsn[i] >= 0 && (oldest < 0 || lsn[i] < oldest))
+					oldest = lsn[i];
+		}
+		return oldest;
+	}
+}
@@ -0,0 +1,162 @@
+package simpledb.buffer;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import simpledb.log.LogMgr;
+
+/**
+ * Forces the log on behalf of many threads at once (group commit). A thread
+ * that needs the log forced up to some LSN registers the LSN. If no force is
+ * in progress it becomes the leader: it forces the log up to the highest LSN
+ * registered so far, holding no lock while it does. Threads that register
+ * while a force is in progress wait for it to end, and the next leader's
+ * force then covers all of them together. A request for an LSN that an
+ * earlier force has already made durable returns at once, without I/O.
+ * <p>
+ * An LSN is the number of the log block that holds the record, so a force
+ * up to LSN n covers every record in the blocks before n, but only the
+ * records of block n that were appended before the force began. A request
+ * for the block last forced therefore waits for a force that starts after
+ * it was registered.
+ * <p>
+ * Waiting threads wait on a lock of the forcer's own rather than a monitor,
+ * so that a virtual thread waiting for a force does not pin its carrier.
+ */
+public class LogForcer {
+	private final LogMgr log;
+	// Every record in a block before this one is durable
+	private volatile int durable = -1;
+	// The highest LSN registered, and the number of forces started and
+	// completed. A request registered when started was s is satisfied once
+	// completed reaches s + 1.
+	private int requested = -1;
+	private long started = 0;
+	private long completed = 0;
+	private boolean forcing = false;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition forced = lock.newCondition();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder forces = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+
+	/**
+	 * Creates a coordinator that forces the specified log.
+	 * 
+	 * @param log
+	 *            the log manager
+	 */
+	public LogForcer(LogMgr log) {
+		this.log = log;
+	}
+
+	/**
+	 * Ensures that the log record with the specified LSN, and every record
+	 * before it, is on disk. The call may force the log itself, wait for a
+	 * force by another thread, or return at once if the record is already
+	 * durable. If a force fails, the thread that made it gets the exception,
+	 * and a waiting thread tries again.
+	 * 
+	 * @param lsn
+	 *            the LSN of a log record; a negative LSN needs no force
+	 * @return true if this call forced the log itself
+	 */
+	public boolean force(int lsn) {
+		if (lsn < 0)
+			return false;
+		requests.increment();
+		if (lsn < durable)
+			return false;
+		long start = System.nanoTime();
+		long needed;
+		lock.lock();
+		try {
+			if (lsn > requested)
+				requested = lsn;
+			needed = started + 1;
+		} finally {
+			lock.unlock();
+		}
+		boolean led = false;
+		int target;
+		while ((target = awaitTurn(needed, lsn)) >= 0) {
+			led = true;
+			boolean ok = false;
+			try {
+				log.flush(target);
+				ok = true;
+			} finally {
+				finish(target, ok);
+			}
+		}
+		waitNanos.add(System.nanoTime() - start);
+		return led;
+	}
+
+	/**
+	 * Returns the number of forces requested with a non-negative LSN.
+	 * 
+	 * @return the number of requests
+	 */
+	public long requestCount() {
+		return requests.sum();
+	}
+
+	/**
+	 * Returns the number of times the log was actually forced.
+	 * 
+	 * @return the number of forces
+	 */
+	public long forceCount() {
+		return forces.sum();
+	}
+
+	/**
+	 * Returns the mean time a request took, forcing or waiting, in
+	 * microseconds. Requests that were already durable count as taking no
+	 * time.
+	 * 
+	 * @return the mean time of a request
+	 */
+	public double meanForceMicros() {
+		long n = requests.sum();
+		return n == 0 ? 0 : waitNanos.sum() / 1000.0 / n;
+	}
+
+	// Waits until the request is satisfied,
+	// returning -1, or until no force is in progress, in which case the
+	// caller leads the next force and the LSN to force up to is returned.
+	private int awaitTurn(long needed, int lsn) {
+		lock.lock();
+		try {
+			while (completed < needed && lsn >= durable) {
+				if (!forcing) {
+					forcing = true;
+					started++;
+					return requested;
+				}
+				forced.awaitUninterruptibly();
+			}
+			return -1;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void finish(int target, boolean ok) {
+		lock.lock();
+		try {
+			forcing = false;
+			if (ok) {
+				completed = started;
+				if (target > durable)
+					durable = target;
+				forces.increment();
+			}
+			forced.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
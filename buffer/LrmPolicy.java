@@ -0,0 +1,111 @@
+package simpledb.buffer;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * The Least Recently Modified policy. Among the unpinned buffers, the dirty
+ * buffer with the lowest LSN is replaced first; if no unpinned buffer is dirty
+ * with a log record, the buffer that has been unpinned the longest is
+ * replaced. Dirty buffers are kept in a set ordered by LSN and the others in a
+ * list in the order they were unpinned, so a victim is found in O(log n).
+ */
+class LrmPolicy implements ReplacementPolicy {
+	// Which structure holds a candidate (see Buffer.queue).
+	private static final int DIRTY_QUEUE = 1;
+	private static final int UNPINNED_LIST = 2;
+
+	// Orders dirty buffers by LSN, lowest first. Ties are broken on the buffer
+	// index so that distinct buffers never compare equal.
+	private static final Comparator<Buffer> LSN_ORDER = new Comparator<Buffer>() {
+		public int compare(Buffer b1, Buffer b2) {
+			if (b1.logSequenceNumber() != b2.logSequenceNumber())
+				return b1.logSequenceNumber() < b2.logSequenceNumber() ? -1 : 1;
+			return b1.bufferIndex < b2.bufferIndex ? -1 : (b1.bufferIndex == b2.bufferIndex ? 0 : 1);
+		}
+	};
+
+	// Unpinned buffers that are dirty with a non-negative LSN. The first
+	// element is the least recently modified buffer.
+	private TreeSet<Buffer> dirtyBuffers = new TreeSet<Buffer>(LSN_ORDER);
+	// All other unpinned buffers (clean, or dirty without a log record), in
+	// the order they were unpinned.
+	private BufferList unpinned = new BufferList();
+
+	public void accessed(Buffer buff) {
+	}
+
+	public void pinned(Buffer buff) {
+		dequeue(buff);
+	}
+
+	public void unpinned(Buffer buff) {
+		enqueue(buff);
+	}
+
+	public void dirtied(Buffer buff) {
+	}
+
+	public void flushed(Buffer buff) {
+		// A clean buffer moves to the end of the list
+		if (buff.queue == DIRTY_QUEUE) {
+			dequeue(buff);
+			enqueue(buff);
+		}
+	}
+
+	public void evicted(Buffer buff) {
+		dequeue(buff);
+	}
+
+	public void detached(Buffer buff) {
+		evicted(buff);
+	}
+
+	public void prefetched(Buffer buff) {
+		dequeue(buff);
+		unpinned.addFirst(buff);
+		buff.queue = UNPINNED_LIST;
+	}
+
+	public Buffer chooseVictim() {
+		if (!dirtyBuffers.isEmpty())
+			return dirtyBuffers.first();
+		return unpinned.first();
+	}
+
+	// The cleaner writes back in LSN order, which is also the order of
+	// replacement.
+	public Buffer chooseDirty(int limit) {
+		return dirtyBuffers.isEmpty() ? null : dirtyBuffers.first();
+	}
+
+	public Buffer chooseClean(int limit) {
+		Buffer buff = unpinned.first();
+		for (int i = 0; buff != null && i < limit; i++, buff = buff.nextUnpinned) {
+			if (!buff.prefetched && buff.modifiedBy() < 0)
+				return buff;
+		}
+		return null;
+	}
+
+	// Adds a newly unpinned buffer to the structure that matches its state.
+	private void enqueue(Buffer buff) {
+		if (buff.modifiedBy() >= 0 && buff.logSequenceNumber() >= 0) {
+			dirtyBuffers.add(buff);
+			buff.queue = DIRTY_QUEUE;
+		} else {
+			unpinned.addLast(buff);
+			buff.queue = UNPINNED_LIST;
+		}
+	}
+
+	// Removes a buffer from whichever structure holds it, if any.
+	private void dequeue(Buffer buff) {
+		if (buff.queue == DIRTY_QUEUE)
+			dirtyBuffers.remove(buff);
+		else if (buff.queue == UNPINNED_LIST)
+			unpinned.remove(buff);
+		buff.queue = Buffer.NOT_QUEUED;
+	}
+}
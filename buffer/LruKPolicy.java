@@ -0,0 +1,162 @@
+package simpledb.buffer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+import simpledb.file.Block;
+
+/**
+ * The LRU-K policy. The policy remembers the times of the last K pins of each
+ * buffer's block, and replaces the unpinned buffer whose K-th most recent pin
+ * is the oldest. A block pinned fewer than K times is replaced before any
+ * other, so a page touched once by a scan does not push out pages that are
+ * used again and again. Ties are broken by the most recent pin, as in LRU.
+ * <p>
+ * The history of a block is kept when it is evicted, so that a block that is
+ * read again soon after is not taken for one pinned once. As many histories
+ * of evicted blocks are kept as the partition has buffers, the oldest
+ * evicted being forgotten first. Blocks that were read ahead and never pinned
+ * are not remembered.
+ */
+class LruKPolicy implements ReplacementPolicy {
+	private static final int IN_SET = 1;
+
+	private final int k;
+	// A logical clock, advanced on every pin.
+	private long time = 0;
+	private TreeSet<Buffer> candidates;
+	// The histories of evicted blocks, least recently evicted first.
+	private LinkedHashMap<Block, long[]> retained = new LinkedHashMap<Block, long[]>();
+	// The number of buffers that have been given a history.
+	private int capacity = 0;
+
+	/**
+	 * Creates an LRU-K policy that looks at the specified number of pins.
+	 * 
+	 * @param k
+	 *            the number of pins remembered for each block
+	 */
+	LruKPolicy(int k) {
+		if (k < 1)
+			throw new IllegalArgumentException("bad history length " + k);
+		this.k = k;
+		candidates = new TreeSet<Buffer>(new Comparator<Buffer>() {
+			public int compare(Buffer b1, Buffer b2) {
+				long[] h1 = history(b1), h2 = history(b2);
+				// A missing pin has time 0, so it sorts first
+				int c = compareTimes(h1[LruKPolicy.this.k - 1], h2[LruKPolicy.this.k - 1]);
+				if (c == 0)
+					c = compareTimes(h1[0], h2[0]);
+				if (c == 0)
+					c = compareTimes(b1.bufferIndex, b2.bufferIndex);
+				return c;
+			}
+		});
+	}
+
+	public void accessed(Buffer buff) {
+		long[] h = history(buff);
+		if (h[0] == 0 && buff.block() != null) {
+			// First pin since the block was read: take up its old history
+			long[] old = retained.remove(buff.block());
+			if (old != null) {
+				h = old;
+				buff.policyState = h;
+			}
+		}
+		System.arraycopy(h, 0, h, 1, k - 1);
+		h[0] = ++time;
+	}
+
+	public void pinned(Buffer buff) {
+		remove(buff);
+	}
+
+	public void unpinned(Buffer buff) {
+		candidates.add(buff);
+		buff.queue = IN_SET;
+	}
+
+	public void dirtied(Buffer buff) {
+	}
+
+	public void flushed(Buffer buff) {
+	}
+
+	public void evicted(Buffer buff) {
+		remove(buff);
+		long[] h = history(buff);
+		if (h[0] == 0 || buff.block() == null)
+			return;
+		// The array goes with the block, and the buffer starts afresh
+		retained.put(buff.block(), h);
+		buff.policyState = new long[k];
+		while (retained.size() > capacity) {
+			Iterator<Block> iter = retained.keySet().iterator();
+			iter.next();
+			iter.remove();
+		}
+	}
+
+	public void detached(Buffer buff) {
+		remove(buff);
+		Arrays.fill(history(buff), 0);
+	}
+
+	public void prefetched(Buffer buff) {
+		remove(buff);
+		Arrays.fill(history(buff), 0);
+		candidates.add(buff);
+		buff.queue = IN_SET;
+	}
+
+	public Buffer chooseVictim() {
+		return candidates.isEmpty() ? null : candidates.first();
+	}
+
+	public Buffer chooseDirty(int limit) {
+		Iterator<Buffer> iter = candidates.iterator();
+		for (int i = 0; i < limit && iter.hasNext(); i++) {
+			Buffer buff = iter.next();
+			if (buff.modifiedBy() >= 0)
+				return buff;
+		}
+		return null;
+	}
+
+	public Buffer chooseClean(int limit) {
+		Iterator<Buffer> iter = candidates.iterator();
+		for (int i = 0; i < limit && iter.hasNext(); i++) {
+			Buffer buff = iter.next();
+			if (!buff.prefetched && buff.modifiedBy() < 0)
+				return buff;
+		}
+		return null;
+	}
+
+	// The pin times of a buffer's block, most recent first. The array is
+	// handed to the block when it is evicted, and the buffer is given a new
+	// one.
+	private long[] history(Buffer buff) {
+		Object state = buff.policyState;
+		if (state instanceof long[] && ((long[]) state).length == k)
+			return (long[]) state;
+		capacity++;
+		long[] h = new long[k];
+		buff.policyState = h;
+		return h;
+	}
+
+	private static int compareTimes(long t1, long t2) {
+		return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+	}
+
+	private void remove(Buffer buff) {
+		if (buff.queue == IN_SET)
+			candidates.remove(buff);
+		buff.queue = Buffer.NOT_QUEUED;
+	}
+}
@@ -0,0 +1,72 @@
+package simpledb.buffer;
+
+/**
+ * The Least Recently Used policy. The unpinned buffers are kept in a list in
+ * the order they were unpinned, and the buffer that has been unpinned the
+ * longest is replaced first, whether or not it is dirty.
+ */
+class LruPolicy implements ReplacementPolicy {
+	private static final int IN_LIST = 1;
+
+	private BufferList unpinned = new BufferList();
+
+	public void accessed(Buffer buff) {
+	}
+
+	public void pinned(Buffer buff) {
+		remove(buff);
+	}
+
+	public void unpinned(Buffer buff) {
+		unpinned.addLast(buff);
+		buff.queue = IN_LIST;
+	}
+
+	public void dirtied(Buffer buff) {
+	}
+
+	public void flushed(Buffer buff) {
+	}
+
+	public void evicted(Buffer buff) {
+		remove(buff);
+	}
+
+	public void detached(Buffer buff) {
+		evicted(buff);
+	}
+
+	public void prefetched(Buffer buff) {
+		remove(buff);
+		unpinned.addFirst(buff);
+		buff.queue = IN_LIST;
+	}
+
+	public Buffer chooseVictim() {
+		return unpinned.first();
+	}
+
+	public Buffer chooseDirty(int limit) {
+		Buffer buff = unpinned.first();
+		for (int i = 0; buff != null && i < limit; i++, buff = buff.nextUnpinned) {
+			if (buff.modifiedBy() >= 0)
+				return buff;
+		}
+		return null;
+	}
+
+	public Buffer chooseClean(int limit) {
+		Buffer buff = unpinned.first();
+		for (int i = 0; buff != null && i < limit; i++, buff = buff.nextUnpinned) {
+			if (!buff.prefetched && buff.modifiedBy() < 0)
+				return buff;
+		}
+		return null;
+	}
+
+	private void remove(Buffer buff) {
+		if (buff.queue == IN_LIST)
+			unpinned.remove(buff);
+		buff.queue = Buffer.NOT_QUEUED;
+	}
+}
@@ -0,0 +1,101 @@
+package simpledb.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.server.SimpleDB;
+
+/**
+ * The database files whose blocks are served from memory-mapped regions of
+ * the file instead of being copied into a page. The regions are mapped
+ * read-only, in chunks of {@link #BLOCKS_PER_CHUNK} blocks, so the operating
+ * system can never write a page back ahead of its log records. A buffer that
+ * is modified first copies its block into its own page (see
+ * {@link Buffer#setInt}), and is written back through the file manager as
+ * usual.
+ */
+class MappedFiles {
+	static final int BLOCKS_PER_CHUNK = 1024;
+
+	private final ConcurrentHashMap<String, MappedFile> files = new ConcurrentHashMap<String, MappedFile>();
+
+	/**
+	 * Serves the blocks of the specified file from memory-mapped regions from
+	 * now on.
+	 * 
+	 * @param filename
+	 *            the name of the file
+	 */
+	void enable(String filename) {
+		if (!files.containsKey(filename))
+			files.putIfAbsent(filename, new MappedFile(filename));
+	}
+
+	/**
+	 * Returns a read-only view of the specified block in the mapped file, or
+	 * null if the file is not mapped or the block is not yet on disk.
+	 * 
+	 * @param blk
+	 *            a reference to a disk block
+	 * @return a byte buffer holding the block, or null
+	 */
+	ByteBuffer view(Block blk) {
+		MappedFile file = files.get(blk.fileName());
+		return file == null ? null : file.view(blk.number());
+	}
+
+	// The mapped chunks of one file.
+	private static class MappedFile {
+		private final String filename;
+		private final ArrayList<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+		MappedFile(String filename) {
+			this.filename = filename;
+		}
+
+		synchronized ByteBuffer view(int blknum) {
+			try {
+				int c = blknum / BLOCKS_PER_CHUNK;
+				long chunkStart = (long) c * BLOCKS_PER_CHUNK * Page.BLOCK_SIZE;
+				int start = (blknum % BLOCKS_PER_CHUNK) * Page.BLOCK_SIZE;
+				MappedByteBuffer chunk = c < chunks.size() ? chunks.get(c) : null;
+				if (chunk == null || chunk.capacity() < start + Page.BLOCK_SIZE) {
+					// Map the chunk, or remap it if the file has grown into it.
+					// A database that is not on disk has nothing to map.
+					File dir = SimpleDB.dbDirectory();
+					File f = dir == null ? null : new File(dir, filename);
+					if (f == null || !f.exists())
+						return null;
+					// The mapping stays valid once the file is closed
+					RandomAccessFile raf = new RandomAccessFile(f, "r");
+					try {
+						FileChannel channel = raf.getChannel();
+						long length = Math.min((long) BLOCKS_PER_CHUNK * Page.BLOCK_SIZE, channel.size() - chunkStart);
+						if (length < start + Page.BLOCK_SIZE)
+							return null;
+						chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, length);
+					} finally {
+						raf.close();
+					}
+					while (chunks.size() <= c)
+						chunks.add(null);
+					chunks.set(c, chunk);
+				}
+				ByteBuffer bb = chunk.duplicate();
+				bb.limit(start + Page.BLOCK_SIZE);
+				bb.position(start);
+				return bb.slice();
+			} catch (IOException e) {
+				throw new RuntimeException("cannot map block " + blknum + " of " + filename, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package simpledb.buffer;
+
+import java.nio.ByteBuffer;
+
+import simpledb.file.Page;
+
+/**
+ * A block of off-heap memory that backs the pages of a set of buffers. The
+ * memory is allocated once, as one or more direct byte buffers (slabs),
+ * and each buffer gets a fixed-size slice of it. This keeps the page bytes out
+ * of the Java heap, so a large pool needs only a small heap and adds little to
+ * garbage collection.
+ * <p>
+ * When the pool shrinks, the frames of retired buffers are released one at a
+ * time. Once every frame of a slab has been released, the arena drops the
+ * slab, so that its memory is returned when the last retired buffer using it
+ * is collected.
+ */
+class PageArena {
+	// Slabs are kept small, so that the few frames of an arena that outlive
+	// a shrink hold on to little memory.
+	private static final int MAX_SLAB_SIZE = 1 << 16;
+	private static final int FRAMES_PER_SLAB = Math.max(1, MAX_SLAB_SIZE / Page.BLOCK_SIZE);
+
+	private ByteBuffer[] slabs;
+	// The number of frames of each slab not yet released
+	private int[] live;
+	private int numframes;
+
+	/**
+	 * Allocates an arena with room for the specified number of pages.
+	 * 
+	 * @param numframes
+	 *            the number of pages
+	 */
+	PageArena(int numframes) {
+		this.numframes = numframes;
+		int numslabs = (numframes + FRAMES_PER_SLAB - 1) / FRAMES_PER_SLAB;
+		slabs = new ByteBuffer[numslabs];
+		live = new int[numslabs];
+		for (int i = 0; i < numslabs; i++) {
+			int frames = Math.min(FRAMES_PER_SLAB, numframes - i * FRAMES_PER_SLAB);
+			slabs[i] = ByteBuffer.allocateDirect(frames * Page.BLOCK_SIZE);
+			live[i] = frames;
+		}
+	}
+
+	/**
+	 * Returns the slice of the arena that holds the specified page. The slice
+	 * has the capacity of one block.
+	 * 
+	 * @param i
+	 *            the index of the page within the arena
+	 * @return the page's byte buffer
+	 * @throws IllegalStateException
+	 *             if the page's slab has been dropped
+	 */
+	synchronized ByteBuffer frame(int i) {
+		if (i < 0 || i >= numframes)
+			throw new IndexOutOfBoundsException("frame " + i);
+		if (slabs[i / FRAMES_PER_SLAB] == null)
+			throw new IllegalStateException("frame " + i + " has been released");
+		ByteBuffer slab = slabs[i / FRAMES_PER_SLAB].duplicate();
+		int start = (i % FRAMES_PER_SLAB) * Page.BLOCK_SIZE;
+		slab.limit(start + Page.BLOCK_SIZE);
+		slab.position(start);
+		return slab.slice();
+	}
+
+	/**
+	 * Releases the specified page, whose buffer has been retired. The page
+	 * must not be used again. When every page of its slab has been released,
+	 * the slab is dropped.
+	 * 
+	 * @param i
+	 *            the index of the page within the arena
+	 * @return true if the page's slab was dropped
+	 */
+	synchronized boolean release(int i) {
+		int s = i / FRAMES_PER_SLAB;
+		if (slabs[s] == null || --live[s] > 0)
+			return false;
+		slabs[s] = null;
+		return true;
+	}
+
+	/**
+	 * Returns the number of pages in the arena.
+	 * 
+	 * @return the number of pages
+	 */
+	int size() {
+		return numframes;
+	}
+}
@@ -0,0 +1,160 @@
+package simpledb.buffer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A background thread that writes dirty, unpinned buffers back to disk before
+ * they are chosen for replacement, so that a pin rarely has to write out its
+ * victim. Within each partition the buffers are written in LSN order. The
+ * cleaner works until the number of dirty buffers drops to its low-water mark,
+ * and then sleeps until it is woken or its interval passes. While the number
+ * of dirty buffers is above the high-water mark, threads that pin a buffer are
+ * held back until the cleaner has caught up; asynchronous pins are held back
+ * as long, by a future that completes then. The cleaner and the threads it
+ * holds back wait on a lock of its own rather than a monitor, so that a
+ * thread held back does not hold on to the carrier of a virtual thread.
+ */
+class PageCleaner extends Thread {
+	private static final long INTERVAL = 100; // milliseconds
+	private static final long MAX_THROTTLE = 50; // milliseconds
+	private BufferMgr bufferMgr;
+	private double cleanFraction;
+	private double highWaterRatio;
+	private volatile int lowWater;
+	private volatile int highWater;
+	private volatile boolean running = true;
+	private final ReentrantLock lock = new ReentrantLock();
+	// Signalled to wake the cleaner, and when it has caught up
+	private final Condition wake = lock.newCondition();
+	private final Condition caughtUp = lock.newCondition();
+	// Completed, like caughtUp is signalled, to release asynchronous pins
+	private final ConcurrentLinkedQueue<CompletableFuture<Void>> heldBack = new ConcurrentLinkedQueue<CompletableFuture<Void>>();
+
+	/**
+	 * Creates a page cleaner for the specified buffer manager.
+	 * 
+	 * @param bufferMgr
+	 *            the buffer manager whose buffers are cleaned
+	 * @param numbuffers
+	 *            the number of buffers in the pool
+	 * @param cleanFraction
+	 *            the fraction of the pool the cleaner tries to keep clean
+	 * @param highWaterRatio
+	 *            the fraction of dirty buffers above which pins are throttled
+	 */
+	PageCleaner(BufferMgr bufferMgr, int numbuffers, double cleanFraction, double highWaterRatio) {
+		super("PageCleaner");
+		setDaemon(true);
+		this.bufferMgr = bufferMgr;
+		this.cleanFraction = cleanFraction;
+		this.highWaterRatio = highWaterRatio;
+		resized(numbuffers);
+	}
+
+	/**
+	 * Recomputes the water marks for a pool that now has the specified
+	 * number of buffers.
+	 * 
+	 * @param numbuffers
+	 *            the number of buffers in the pool
+	 */
+	void resized(int numbuffers) {
+		int low = (int) (numbuffers * (1 - cleanFraction));
+		highWater = Math.max(low, (int) (numbuffers * highWaterRatio));
+		lowWater = low;
+	}
+
+	public void run() {
+		while (running) {
+			while (running && bufferMgr.dirtyCount() > lowWater && bufferMgr.cleanOne())
+				;
+			if (bufferMgr.dirtyCount() <= highWater)
+				release();
+			lock.lock();
+			try {
+				caughtUp.signalAll(); // release throttled threads
+				if (running)
+					wake.await(INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Holds the calling thread back while the pool is over the high-water
+	 * mark, for at most a short fixed time.
+	 */
+	void throttle() {
+		if (bufferMgr.dirtyCount() <= highWater)
+			return;
+		long remaining = TimeUnit.MILLISECONDS.toNanos(MAX_THROTTLE);
+		lock.lock();
+		try {
+			wake.signal();
+			while (running && bufferMgr.dirtyCount() > highWater && remaining > 0)
+				remaining = caughtUp.awaitNanos(remaining);
+		} catch (InterruptedException e) {
+			throw new BufferAbortException();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a future that completes when an asynchronous pin may go ahead,
+	 * or null if it need not wait. While the pool is over the high-water
+	 * mark, the future completes when the cleaner has caught up, or after
+	 * the longest time {@link #throttle()} holds a thread back.
+	 * 
+	 * @return a future that completes when the pin may go ahead, or null
+	 */
+	CompletableFuture<Void> throttleAsync() {
+		if (!running || bufferMgr.dirtyCount() <= highWater)
+			return null;
+		final CompletableFuture<Void> held = new CompletableFuture<Void>();
+		heldBack.add(held);
+		lock.lock();
+		try {
+			wake.signal();
+		} finally {
+			lock.unlock();
+		}
+		CompletableFuture.delayedExecutor(MAX_THROTTLE, TimeUnit.MILLISECONDS).execute(new Runnable() {
+			public void run() {
+				held.complete(null);
+			}
+		});
+		if (!running)
+			release();
+		return held;
+	}
+
+	// Lets every asynchronous pin held back go ahead.
+	private void release() {
+		CompletableFuture<Void> held;
+		while ((held = heldBack.poll()) != null)
+			held.complete(null);
+	}
+
+	/**
+	 * Stops the cleaner after its current write.
+	 */
+	void shutdown() {
+		lock.lock();
+		try {
+			running = false;
+			wake.signal();
+			caughtUp.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		release();
+	}
+}
@@ -0,0 +1,124 @@
+package simpledb.buffer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import simpledb.file.Block;
+import simpledb.server.SimpleDB;
+
+/**
+ * Detects sequential access to a file and reads the blocks that follow into
+ * the pool in the background. A run starts when a file's blocks are pinned in
+ * consecutive order. Once the run is long enough, the next blocks are read
+ * ahead of the scan, and the number of blocks read ahead doubles each time
+ * until it reaches the maximum window. A pin of any other block of the file
+ * ends the run.
+ */
+class ReadAhead {
+	private static final int TRIGGER = 3; // consecutive pins that start a run
+	private static final int MIN_WINDOW = 4;
+
+	private BufferMgr bufferMgr;
+	private int maxWindow;
+	private ConcurrentHashMap<String, Run> runs = new ConcurrentHashMap<String, Run>();
+	private ThreadPoolExecutor readers;
+
+	/**
+	 * Creates read-ahead for the specified buffer manager.
+	 * 
+	 * @param bufferMgr
+	 *            the buffer manager that the blocks are read into
+	 * @param maxWindow
+	 *            the largest number of blocks read ahead of a scan
+	 */
+	ReadAhead(BufferMgr bufferMgr, int maxWindow) {
+		this.bufferMgr = bufferMgr;
+		this.maxWindow = Math.max(MIN_WINDOW, maxWindow);
+		// Requests that do not fit in the queue are dropped; they are hints.
+		readers = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(64),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ReadAhead");
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	/**
+	 * Notes that the specified block is being pinned, and schedules the
+	 * blocks after it to be read if it continues a run.
+	 * 
+	 * @param blk
+	 *            the block being pinned
+	 */
+	void accessed(Block blk) {
+		Run run = runs.get(blk.fileName());
+		if (run == null) {
+			run = new Run();
+			Run existing = runs.putIfAbsent(blk.fileName(), run);
+			if (existing != null)
+				run = existing;
+		}
+		int n = blk.number();
+		int from, to;
+		synchronized (run) {
+			if (n == run.last)
+				return;
+			if (n == run.last + 1) {
+				run.length++;
+			} else {
+				run.length = 1;
+				run.window = MIN_WINDOW;
+				run.readTo = n;
+			}
+			run.last = n;
+			// Keep at least half a window ahead of the scan
+			if (run.length < TRIGGER || run.readTo - n > run.window / 2)
+				return;
+			from = Math.max(run.readTo, n) + 1;
+			to = n + run.window;
+			run.readTo = to;
+			run.window = Math.min(run.window * 2, maxWindow);
+		}
+		readers.execute(new Prefetch(blk.fileName(), from, to));
+	}
+
+	/**
+	 * Stops the background reader.
+	 */
+	void shutdown() {
+		readers.shutdownNow();
+	}
+
+	// The state of the current run of a file.
+	private static class Run {
+		int last = -2;
+		int length = 0;
+		int window = MIN_WINDOW;
+		int readTo = -1;
+	}
+
+	// Reads a range of blocks of a file into the pool.
+	private class Prefetch implements Runnable {
+		private String filename;
+		private int from, to;
+
+		Prefetch(String filename, int from, int to) {
+			this.filename = filename;
+			this.from = from;
+			this.to = to;
+		}
+
+		public void run() {
+			int last = Math.min(to, SimpleDB.fileMgr().size(filename) - 1);
+			for (int n = from; n <= last; n++) {
+				if (!bufferMgr.prefetch(new Block(filename, n)))
+					return; // no room without evicting hot pages
+			}
+		}
+	}
+}
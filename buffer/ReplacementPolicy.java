@@ -0,0 +1,137 @@
+package simpledb.buffer;
+
+/**
+ * Decides which unpinned buffer of a {@link BasicBufferMgr} is replaced when
+ * a block that is not in the pool is pinned. The manager reports each event
+ * that a policy may need through the hooks below, and asks the policy for a
+ * victim only when it has no free buffer left. Each partition of a pool has
+ * its own policy object, and every method is called while that partition's
+ * lock is held, so a policy need not be thread-safe.
+ * <p>
+ * A policy only ever sees the buffers of its own partition. A buffer becomes
+ * a candidate for replacement when it is unpinned, and stops being one when it
+ * is pinned again or evicted.
+ */
+public interface ReplacementPolicy {
+
+	/**
+	 * Called each time the buffer is pinned, whether or not its block was
+	 * already in the pool. The buffer is never a candidate at this point.
+	 * 
+	 * @param buff
+	 *            the buffer being pinned
+	 */
+	void accessed(Buffer buff);
+
+	/**
+	 * Called when an unpinned buffer is pinned again, before
+	 * {@link #accessed(Buffer)}. The buffer stops being a candidate.
+	 * 
+	 * @param buff
+	 *            the buffer being pinned
+	 */
+	void pinned(Buffer buff);
+
+	/**
+	 * Called when the buffer's last pin is released. The buffer becomes a
+	 * candidate.
+	 * 
+	 * @param buff
+	 *            the buffer that is no longer pinned
+	 */
+	void unpinned(Buffer buff);
+
+	/**
+	 * Called when the manager finds that a buffer has been modified. A buffer
+	 * is modified only while it is pinned, so this is reported as the buffer
+	 * is unpinned, just before {@link #unpinned(Buffer)}.
+	 * 
+	 * @param buff
+	 *            the modified buffer
+	 */
+	void dirtied(Buffer buff);
+
+	/**
+	 * Called after an unpinned buffer has been written back, so that it is
+	 * now clean.
+	 * 
+	 * @param buff
+	 *            the buffer that was written
+	 */
+	void flushed(Buffer buff);
+
+	/**
+	 * Called when the block of a candidate buffer is about to be replaced.
+	 * The buffer stops being a candidate, and any history the policy keeps for
+	 * it should be dropped.
+	 * 
+	 * @param buff
+	 *            the buffer being evicted
+	 */
+	void evicted(Buffer buff);
+
+	/**
+	 * Called when a pinned buffer leaves the partition with its block still
+	 * in use, or when its block could not be read. The policy should forget
+	 * the buffer as for {@link #evicted(Buffer)}, but the block was not
+	 * replaced, so it should not be remembered as evicted.
+	 * 
+	 * @param buff
+	 *            the buffer leaving the policy
+	 */
+	void detached(Buffer buff);
+
+	/**
+	 * Called when a block has been read into an unpinned buffer ahead of its
+	 * first pin. The buffer becomes a candidate, and should be among the first
+	 * to be replaced if it is not pinned soon.
+	 * 
+	 * @param buff
+	 *            the buffer holding the block read ahead
+	 */
+	void prefetched(Buffer buff);
+
+	/**
+	 * Returns the candidate that should be replaced next, or null if there is
+	 * none. The buffer remains a candidate until {@link #evicted(Buffer)} or
+	 * {@link #pinned(Buffer)} is called for it.
+	 * 
+	 * @return the buffer to replace, or null
+	 */
+	Buffer chooseVictim();
+
+	/**
+	 * Returns a dirty candidate for the page cleaner to write back, chosen
+	 * from among the next buffers the policy would replace. Returns null if
+	 * none of the first <code>limit</code> candidates is dirty.
+	 * 
+	 * @param limit
+	 *            how many candidates to look at
+	 * @return a dirty candidate, or null
+	 */
+	Buffer chooseDirty(int limit);
+
+	/**
+	 * Returns a clean candidate that a prefetch may reuse, chosen from among
+	 * the next buffers the policy would replace. A buffer that was itself read
+	 * ahead and has not been pinned since is never chosen. Returns null if
+	 * none of the first <code>limit</code> candidates qualifies.
+	 * 
+	 * @param limit
+	 *            how many candidates to look at
+	 * @return a clean candidate, or null
+	 */
+	Buffer chooseClean(int limit);
+
+	/**
+	 * Creates the policy object for each partition of a pool.
+	 */
+	interface Factory {
+		/**
+		 * Returns a new policy with no candidates.
+		 * 
+		 * @return the policy
+		 */
+		ReplacementPolicy newPolicy();
+	}
+}
@@ -0,0 +1,205 @@
+package simpledb.buffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.file.Block;
+import simpledb.server.SimpleDB;
+
+/**
+ * Saves which blocks are in a buffer pool, and reloads them after a restart so
+ * that the pool does not start cold. A snapshot lists the resident blocks of
+ * each file in block order, each with its heat (the number of pins since it
+ * was read in). It is written with a {@link DataOutputStream}: the magic
+ * number 0x53444252 and the format version as ints; the number of files;
+ * then for each file its name (modified UTF-8), its number of blocks, and the
+ * number and heat of each block as ints. A snapshot is written to a temporary
+ * file that then replaces the old one, so a crash never leaves half of one.
+ */
+class ResidencySnapshot {
+	static final int MAGIC = 0x53444252; // "SDBR"
+	static final int VERSION = 1;
+	private static final int MAX_LOADERS = 8;
+
+	/**
+	 * Writes the blocks and heat to the specified file.
+	 * 
+	 * @param heat
+	 *            the resident blocks and their heat
+	 * @param f
+	 *            the snapshot file
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	static void save(Map<Block, Integer> heat, File f) throws IOException {
+		TreeMap<String, List<Block>> byFile = new TreeMap<String, List<Block>>();
+		for (Block blk : heat.keySet()) {
+			List<Block> blocks = byFile.get(blk.fileName());
+			if (blocks == null) {
+				blocks = new ArrayList<Block>();
+				byFile.put(blk.fileName(), blocks);
+			}
+			blocks.add(blk);
+		}
+		File tmp = new File(f.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(byFile.size());
+			for (Map.Entry<String, List<Block>> e : byFile.entrySet()) {
+				List<Block> blocks = e.getValue();
+				Collections.sort(blocks, DirtyBufferTable.BLOCK_ORDER);
+				out.writeUTF(e.getKey());
+				out.writeInt(blocks.size());
+				for (Block blk : blocks) {
+					out.writeInt(blk.number());
+					out.writeInt(heat.get(blk));
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a snapshot and returns its hottest blocks, at most the specified
+	 * number, from the least pinned to the most. Blocks of equal heat are in
+	 * file and block order. Blocks that are no longer on disk are left out.
+	 * 
+	 * @param f
+	 *            the snapshot file
+	 * @param max
+	 *            the largest number of blocks to return
+	 * @return the blocks to reload
+	 * @throws IOException
+	 *             if the file cannot be read or is not a snapshot
+	 */
+	static List<Block> load(File f, int max) throws IOException {
+		final TreeMap<Block, Integer> heat = new TreeMap<Block, Integer>(DirtyBufferTable.BLOCK_ORDER);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(f + " is not a residency snapshot");
+			for (int files = in.readInt(); files > 0; files--) {
+				String filename = in.readUTF();
+				int size = onDisk(filename);
+				for (int n = in.readInt(); n > 0; n--) {
+					int blknum = in.readInt();
+					int h = in.readInt();
+					if (blknum < size)
+						heat.put(new Block(filename, blknum), h);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		// A stable sort, so blocks of equal heat stay in block order
+		List<Block> blocks = new ArrayList<Block>(heat.keySet());
+		Collections.sort(blocks, new Comparator<Block>() {
+			public int compare(Block b1, Block b2) {
+				return heat.get(b1).compareTo(heat.get(b2));
+			}
+		});
+		if (blocks.size() > max)
+			blocks = new ArrayList<Block>(blocks.subList(blocks.size() - max, blocks.size()));
+		return blocks;
+	}
+
+	/**
+	 * Reads the blocks into the pool in the background, into buffers chosen
+	 * as read-ahead chooses them, so that no block that has been pinned
+	 * meanwhile is replaced. Each block enters the pool as an ordinary
+	 * resident. Several threads take the blocks in list order from a shared
+	 * position, so the blocks are read roughly in that order.
+	 * 
+	 * @param bufferMgr
+	 *            the buffer manager to load
+	 * @param blocks
+	 *            the blocks, from the least pinned to the most
+	 */
+	static void warmUp(final BufferMgr bufferMgr, final List<Block> blocks) {
+		int loaders = Math.max(1, Math.min(MAX_LOADERS, Runtime.getRuntime().availableProcessors()));
+		final AtomicInteger next = new AtomicInteger();
+		for (int i = 0; i < Math.min(loaders, blocks.size()); i++) {
+			Thread t = new Thread("BufferWarmUp-" + i) {
+				public void run() {
+					for (int n = next.getAndIncrement(); n < blocks.size(); n = next.getAndIncrement())
+						bufferMgr.preload(blocks.get(n));
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	// The number of blocks of the file on disk, without creating the file if
+	// it is gone (temporary files are deleted at startup).
+	private static int onDisk(String filename) {
+		File dir = SimpleDB.dbDirectory();
+		if (dir != null && !new File(dir, filename).exists())
+			return 0;
+		return SimpleDB.fileMgr().size(filename);
+	}
+
+	/**
+	 * A background thread that saves a snapshot of the pool periodically.
+	 */
+	static class Saver extends Thread {
+		private final BufferMgr bufferMgr;
+		private final File file;
+		private final long interval;
+		private volatile boolean running = true;
+
+		Saver(BufferMgr bufferMgr, File file, long interval) {
+			super("ResidencySnapshot");
+			setDaemon(true);
+			this.bufferMgr = bufferMgr;
+			this.file = file;
+			this.interval = interval;
+		}
+
+		public void run() {
+			while (running) {
+				synchronized (this) {
+					try {
+						wait(interval);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (running) {
+					try {
+						bufferMgr.saveResidency(file);
+					} catch (IOException e) {
+						// try again next time
+					}
+				}
+			}
+		}
+
+		/**
+		 * Stops the thread without saving again.
+		 */
+		synchronized void shutdown() {
+			running = false;
+			notifyAll();
+		}
+	}
+}
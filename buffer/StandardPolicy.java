@@ -0,0 +1,38 @@
+package simpledb.buffer;
+
+/**
+ * The replacement policies that come with the buffer manager. Any of them can
+ * be passed to {@link BufferMgr#BufferMgr(int, int, boolean, ReplacementPolicy.Factory)}.
+ */
+public enum StandardPolicy implements ReplacementPolicy.Factory {
+	/** Least Recently Modified; see {@link LrmPolicy}. */
+	LRM {
+		public ReplacementPolicy newPolicy() {
+			return new LrmPolicy();
+		}
+	},
+	/** Least Recently Used; see {@link LruPolicy}. */
+	LRU {
+		public ReplacementPolicy newPolicy() {
+			return new LruPolicy();
+		}
+	},
+	/** CLOCK, or second chance; see {@link ClockPolicy}. */
+	CLOCK {
+		public ReplacementPolicy newPolicy() {
+			return new ClockPolicy();
+		}
+	},
+	/** LRU-K with K = 2; see {@link LruKPolicy}. */
+	LRU_2 {
+		public ReplacementPolicy newPolicy() {
+			return new LruKPolicy(2);
+		}
+	},
+	/** Adaptive and scan-resistant, with ghost history; see {@link ArcPolicy}. */
+	ARC {
+		public ReplacementPolicy newPolicy() {
+			return new ArcPolicy();
+		}
+	};
+}
@@ -0,0 +1,276 @@
+package simpledb.buffer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import simpledb.file.Block;
+import simpledb.file.SimulatedFileMgr;
+import simpledb.server.SimpleDB;
+
+/**
+ * Replays a trace written by {@link EventTracer#dump(java.io.File)} against
+ * buffer pools of several sizes and replacement policies, and reports how
+ * each would have done. The pools run on a {@link SimulatedFileMgr}, so no
+ * disk I/O is done; the I/O cost is estimated from the number of block reads
+ * and writes. Each combination of size and policy is replayed by its own
+ * thread, on as many cores as there are.
+ * <p>
+ * The pins, unpins, modifications and prefetches of the trace are replayed in
+ * order. A flush is replayed only if it was not caused by an eviction in the
+ * traced pool, since each replayed pool makes its own evictions. A new block
+ * is replayed as a pin of the same block, which is always a miss but is not
+ * counted as a read. A pin that finds every buffer pinned is counted as a
+ * stall and skipped, along with its unpin. The replayed pools keep no log:
+ * their pages are written without waiting for a log force, so that replays
+ * running at once do not interfere through the server's log.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * java simpledb.buffer.TraceReplay tracefile sizes [policies [readMicros [writeMicros]]]
+ * </pre>
+ * 
+ * where sizes and policies are comma-separated lists, such as
+ * <code>100,1000</code> and <code>LRM,ARC</code>. The policies default to all
+ * the {@link StandardPolicy standard policies}, and a read and a write to 100
+ * and 200 microseconds.
+ */
+public class TraceReplay {
+	private final int[] types;
+	private final int[] blockIds;
+	private final int[] txnums;
+	private final int[] lsns;
+	private final boolean[] evictionFlush;
+	private final Block[] blocks;
+
+	/**
+	 * Loads the specified trace file.
+	 * 
+	 * @param tracefile
+	 *            the name of the trace file
+	 * @throws IOException
+	 *             if the file cannot be read or is not a trace
+	 */
+	public TraceReplay(String tracefile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tracefile)));
+		try {
+			if (in.readInt() != EventTracer.MAGIC || in.readInt() != EventTracer.VERSION)
+				throw new IOException(tracefile + " is not a buffer trace");
+			HashMap<Integer, String> files = new HashMap<Integer, String>();
+			for (int n = in.readInt(); n > 0; n--) {
+				int id = in.readInt();
+				files.put(id, in.readUTF());
+			}
+			int n = in.readInt();
+			types = new int[n];
+			blockIds = new int[n];
+			txnums = new int[n];
+			lsns = new int[n];
+			evictionFlush = new boolean[n];
+			// Each distinct block gets a dense id, so that replay state can
+			// be kept in arrays.
+			HashMap<Block, Integer> ids = new HashMap<Block, Integer>();
+			List<Block> blockList = new ArrayList<Block>();
+			HashMap<Integer, Integer> evicting = new HashMap<Integer, Integer>();
+			HashMap<Integer, Integer> lastFlush = new HashMap<Integer, Integer>();
+			for (int i = 0; i < n; i++) {
+				in.readLong(); // the time is not used
+				types[i] = in.readByte();
+				int fileId = in.readInt();
+				int blknum = in.readInt();
+				int bufferIndex = in.readInt();
+				txnums[i] = in.readInt();
+				lsns[i] = in.readInt();
+				blockIds[i] = -1;
+				if (fileId >= 0 && files.containsKey(fileId)) {
+					Block blk = new Block(files.get(fileId), blknum);
+					Integer id = ids.get(blk);
+					if (id == null) {
+						id = blockList.size();
+						ids.put(blk, id);
+						blockList.add(blk);
+					}
+					blockIds[i] = id;
+				}
+				// The flush that follows a dirty eviction of the same block,
+				// or, when the victim is written back before it is evicted,
+				// the flush that just precedes it
+				if (types[i] == EventTracer.EVICT_DIRTY) {
+					Integer flushed = lastFlush.remove(bufferIndex);
+					if (flushed != null && blockIds[flushed] == blockIds[i])
+						evictionFlush[flushed] = true;
+					else
+						evicting.put(bufferIndex, blockIds[i]);
+				} else if (types[i] == EventTracer.FLUSH) {
+					Integer evicted = evicting.remove(bufferIndex);
+					evictionFlush[i] = evicted != null && evicted == blockIds[i];
+					lastFlush.put(bufferIndex, i);
+				} else if (types[i] == EventTracer.MODIFY)
+					lastFlush.remove(bufferIndex);
+			}
+			blocks = blockList.toArray(new Block[blockList.size()]);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replays the trace against a pool of the specified size and policy.
+	 * 
+	 * @param size
+	 *            the number of buffers
+	 * @param policy
+	 *            the replacement policy
+	 * @return the outcome of the replay
+	 */
+	public Result replay(int size, StandardPolicy policy) {
+		BufferMetrics metrics = new BufferMetrics();
+		// The pool keeps no log, so that replays running at once do not
+		// contend for the server's log forcer or force its log
+		BasicBufferMgr pool = new BasicBufferMgr(size, 0,
+				new FrameTable(new DirtyBufferTable(), new MappedFiles(), metrics, false), false, policy.newPolicy());
+		Buffer[] held = new Buffer[blocks.length];
+		int[] stalled = new int[blocks.length];
+		Result r = new Result(size, policy);
+		for (int i = 0; i < types.length; i++) {
+			int id = blockIds[i];
+			if (id < 0)
+				continue;
+			Buffer buff = held[id];
+			switch (types[i]) {
+			case EventTracer.PIN_HIT:
+			case EventTracer.PIN_MISS:
+			case EventTracer.PIN_NEW:
+				r.pins++;
+				buff = pool.pin(blocks[id]);
+				if (buff == null) {
+					r.stalls++;
+					stalled[id]++;
+				} else {
+					held[id] = buff;
+					if (types[i] == EventTracer.PIN_NEW)
+						r.newBlocks++;
+				}
+				break;
+			case EventTracer.UNPIN:
+				if (stalled[id] > 0)
+					stalled[id]--;
+				else if (buff != null) {
+					pool.unpin(buff);
+					if (!buff.isPinned())
+						held[id] = null;
+				}
+				break;
+			case EventTracer.MODIFY:
+				if (buff != null)
+					buff.setInt(0, 0, txnums[i], lsns[i]);
+				break;
+			case EventTracer.FLUSH:
+				buff = pool.getMapping(blocks[id]);
+				if (!evictionFlush[i] && buff != null)
+					pool.flush(buff, txnums[i], -1);
+				break;
+			case EventTracer.PREFETCH:
+				pool.prefetch(blocks[id]);
+				break;
+			default:
+				break;
+			}
+		}
+		r.hits = metrics.hits.sum();
+		r.reads = metrics.misses.sum() - r.newBlocks;
+		r.cleanEvictions = metrics.cleanEvictions.sum();
+		r.dirtyEvictions = metrics.dirtyEvictions.sum();
+		r.writes = metrics.flushes.sum();
+		return r;
+	}
+
+	/**
+	 * The outcome of replaying a trace against one pool.
+	 */
+	public static class Result {
+		public final int size;
+		public final StandardPolicy policy;
+		public long pins, hits, reads, newBlocks, cleanEvictions, dirtyEvictions, writes, stalls;
+
+		Result(int size, StandardPolicy policy) {
+			this.size = size;
+			this.policy = policy;
+		}
+
+		/**
+		 * Returns the fraction of pins of existing blocks that found the
+		 * block in the pool.
+		 * 
+		 * @return the hit ratio
+		 */
+		public double hitRatio() {
+			long total = hits + reads;
+			return total == 0 ? 0 : (double) hits / total;
+		}
+
+		/**
+		 * Returns the estimated time spent on block I/O, in milliseconds.
+		 * 
+		 * @param readMicros
+		 *            the time to read a block, in microseconds
+		 * @param writeMicros
+		 *            the time to write a block, in microseconds
+		 * @return the estimated I/O time
+		 */
+		public double ioMillis(double readMicros, double writeMicros) {
+			return (reads * readMicros + writes * writeMicros) / 1000;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("usage: TraceReplay tracefile sizes [policies [readMicros [writeMicros]]]");
+			System.exit(1);
+		}
+		final TraceReplay trace = new TraceReplay(args[0]);
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (String s : args[1].split(","))
+			sizes.add(Integer.parseInt(s.trim()));
+		List<StandardPolicy> policies = new ArrayList<StandardPolicy>();
+		if (args.length > 2)
+			for (String s : args[2].split(","))
+				policies.add(StandardPolicy.valueOf(s.trim()));
+		else
+			for (StandardPolicy p : StandardPolicy.values())
+				policies.add(p);
+		double readMicros = args.length > 3 ? Double.parseDouble(args[3]) : 100;
+		double writeMicros = args.length > 4 ? Double.parseDouble(args[4]) : 200;
+
+		SimpleDB.initFileAndLogMgr(new SimulatedFileMgr("simpledb-replay"));
+
+		ExecutorService runners = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Future<Result>> results = new ArrayList<Future<Result>>();
+		for (final StandardPolicy policy : policies)
+			for (final int size : sizes)
+				results.add(runners.submit(new Callable<Result>() {
+					public Result call() {
+						return trace.replay(size, policy);
+					}
+				}));
+		runners.shutdown();
+
+		System.out.println(String.format("%-6s %8s %10s %7s %10s %10s %10s %10s %8s %12s", "policy", "size", "pins", "hit%",
+				"reads", "cleanEvict", "dirtyEvict", "writes", "stalls", "io(ms)"));
+		for (Future<Result> f : results) {
+			Result r = f.get();
+			System.out.println(String.format("%-6s %8d %10d %7.2f %10d %10d %10d %10d %8d %12.1f", r.policy, r.size, r.pins,
+					100 * r.hitRatio(), r.reads, r.cleanEvictions, r.dirtyEvictions, r.writes, r.stalls,
+					r.ioMillis(readMicros, writeMicros)));
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package simpledb.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.server.SimpleDB;
+
+/**
+ * Gives the buffer manager access to the file manager's block reads and
+ * writes for byte buffers that are not wrapped in a {@link Page}, such as
+ * the slices of an off-heap page arena. The I/O goes through the file
+ * manager, so it shares its open files and its locking. Reads and writes
+ * of several blocks at once go through channels of their own, since the
+ * file manager's are private to it, but hold the file manager's lock, so
+ * that they are ordered with its reads, writes, appends and size checks
+ * as its own I/O is. Like the file manager's, these write synchronously.
+ */
+public class BlockIO {
+   private static ConcurrentHashMap<File, FileChannel> channels = new ConcurrentHashMap<File, FileChannel>();
+   
+   /**
+    * Reads the contents of a disk block into a byte buffer.
+    * The byte buffer must hold exactly one block.
+    * @param blk a reference to a disk block
+    * @param bb  the byte buffer
+    */
+   public static void read(Block blk, ByteBuffer bb) {
+      SimpleDB.fileMgr().read(blk, bb);
+   }
+   
+   /**
+    * Reads consecutive disk blocks, starting at the specified block,
+    * into the byte buffers, one block each, with a single scattering
+    * read. If the database is not on disk, as with a
+    * {@link SimulatedFileMgr}, the blocks are read one at a time
+    * through the file manager.
+    * Each byte buffer must hold exactly one block.
+    * @param first a reference to the first disk block
+    * @param bbs   the byte buffers
+    */
+   public static void read(Block first, ByteBuffer[] bbs) {
+      File dir = SimpleDB.dbDirectory();
+      File f = dir == null ? null : new File(dir, first.fileName());
+      if (f == null || !f.exists()) {
+         for (int i = 0; i < bbs.length; i++)
+            read(new Block(first.fileName(), first.number() + i), bbs[i]);
+         return;
+      }
+      try {
+         for (ByteBuffer bb : bbs)
+            bb.clear();
+         FileChannel fc = channel(f);
+         synchronized (SimpleDB.fileMgr()) {
+            fc.position((long) first.number() * Page.BLOCK_SIZE);
+            long remaining = (long) bbs.length * Page.BLOCK_SIZE;
+            long n;
+            while (remaining > 0 && (n = fc.read(bbs)) >= 0)
+               remaining -= n;
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read " + bbs.length + " blocks from " + first, e);
+      }
+   }
+   
+   /**
+    * Writes the contents of a byte buffer to a disk block.
+    * The byte buffer must hold exactly one block.
+    * @param blk a reference to a disk block
+    * @param bb  the byte buffer
+    */
+   public static void write(Block blk, ByteBuffer bb) {
+      SimpleDB.fileMgr().write(blk, bb);
+   }
+   
+   /**
+    * Writes the contents of the byte buffers to consecutive disk blocks,
+    * starting at the specified block, one block each, with a single
+    * gathering write. If the database is not on disk, the blocks are
+    * written one at a time through the file manager.
+    * Each byte buffer must hold exactly one block.
+    * @param first a reference to the first disk block
+    * @param bbs   the byte buffers
+    */
+   public static void write(Block first, ByteBuffer[] bbs) {
+      File dir = SimpleDB.dbDirectory();
+      File f = dir == null ? null : new File(dir, first.fileName());
+      if (f == null || !f.exists()) {
+         for (int i = 0; i < bbs.length; i++)
+            write(new Block(first.fileName(), first.number() + i), bbs[i]);
+         return;
+      }
+      try {
+         for (ByteBuffer bb : bbs)
+            bb.rewind();
+         FileChannel fc = channel(f);
+         synchronized (SimpleDB.fileMgr()) {
+            fc.position((long) first.number() * Page.BLOCK_SIZE);
+            long remaining = (long) bbs.length * Page.BLOCK_SIZE;
+            while (remaining > 0)
+               remaining -= fc.write(bbs);
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + bbs.length + " blocks at " + first, e);
+      }
+   }
+   
+   // A channel has a single position, so each is used under the file
+   // manager's lock only.
+   private static FileChannel channel(File f) throws IOException {
+      FileChannel fc = channels.get(f);
+      if (fc == null) {
+         fc = new RandomAccessFile(f, "rws").getChannel();
+         FileChannel other = channels.putIfAbsent(f, fc);
+         if (other != null) {
+            fc.close();
+            fc = other;
+         }
+      }
+      return fc;
+   }
+}
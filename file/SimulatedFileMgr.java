@@ -0,0 +1,77 @@
+package simpledb.file;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A file manager that does no disk I/O, for running the buffer manager
+ * offline. Every block reads as zeros, writes are discarded, and only the
+ * size of each file is kept, so that blocks can be appended. Reads and writes
+ * share no state, so many buffer pools can use one simulated file manager at
+ * once without contending. Reads can be made to take a fixed time, so that
+ * a load is still in progress when other threads ask for the block.
+ * <p>
+ * The database directory is still created, as by any file manager, but no
+ * file in it is used.
+ */
+public class SimulatedFileMgr extends FileMgr {
+   private ConcurrentHashMap<String, AtomicInteger> sizes = new ConcurrentHashMap<String, AtomicInteger>();
+   private final long readDelay;
+   
+   /**
+    * Creates a simulated file manager.
+    * @param dbname the name of the (unused) database directory
+    */
+   public SimulatedFileMgr(String dbname) {
+      this(dbname, 0);
+   }
+   
+   /**
+    * Creates a simulated file manager whose reads each take the specified
+    * time.
+    * @param dbname the name of the (unused) database directory
+    * @param readDelay the time each read takes, in milliseconds
+    */
+   public SimulatedFileMgr(String dbname, long readDelay) {
+      super(dbname);
+      this.readDelay = readDelay;
+   }
+   
+   void read(Block blk, ByteBuffer bb) {
+      if (readDelay > 0)
+         LockSupport.parkNanos(this, readDelay * 1000000L);
+      bb.clear();
+      while (bb.hasRemaining())
+         bb.put((byte) 0);
+   }
+   
+   void write(Block blk, ByteBuffer bb) {
+      AtomicInteger size = sizeOf(blk.fileName());
+      int current;
+      while ((current = size.get()) <= blk.number() && !size.compareAndSet(current, blk.number() + 1))
+         ;
+   }
+   
+   Block append(String filename, ByteBuffer bb) {
+      return new Block(filename, sizeOf(filename).getAndIncrement());
+   }
+   
+   public int size(String filename) {
+      return sizeOf(filename).get();
+   }
+   
+   public boolean isNew() {
+      return true;
+   }
+   
+   private AtomicInteger sizeOf(String filename) {
+      AtomicInteger size = sizes.get(filename);
+      if (size == null) {
+         sizes.putIfAbsent(filename, new AtomicInteger());
+         size = sizes.get(filename);
+      }
+      return size;
+   }
+}
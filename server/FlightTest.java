@@ -0,0 +1,237 @@
+package simpledb.server;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferAbortException;
+import simpledb.buffer.BufferMgr;
+import simpledb.buffer.BufferPoolMXBean;
+import simpledb.buffer.PageFormatter;
+import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.file.SimulatedFileMgr;
+
+/**
+ * Checks the loading protocol that lets a pool read and write pages outside
+ * its locks: a block being read is mapped to a buffer marked as loading, and
+ * the threads that pin it meanwhile wait for that one read.
+ * <p>
+ * Two cases are run. Many threads released at once pin the same block that
+ * is not in the pool, on a simulated disk whose reads are slow: they must
+ * all get the same buffer, with one miss between them, only once the block
+ * has been read into it, and the buffer must stay pinned until each has
+ * unpinned it. A pin of a block already in the pool, made while the read is
+ * in progress, must not wait for it. Then, on disk, threads pin and modify
+ * blocks of a file larger than the pool while others append new blocks, so
+ * that buffers are replaced, written back and read again as other threads
+ * pin them: every pin must get the block asked for with the contents last
+ * written to it, every new block must be formatted and have a number of its
+ * own, and once everything is flushed the file must hold the last value
+ * written to each block.
+ * <p>
+ * Usage: <code>java simpledb.server.FlightTest [seed [rounds]]</code>
+ */
+public class FlightTest {
+   private static final String FILE = "flight";
+   private static final int BLOCKS = 64;
+   private static final int THREADS = 8;
+   private static final int POOL_SIZE = 16;
+   private static final long READ_DELAY = 50; // milliseconds
+
+   private static PageFormatter blank = new PageFormatter() {
+      public void format(Page p) {
+         p.setInt(0, -1);
+         p.setInt(4, 0);
+      }
+   };
+
+   public static void main(String args[]) throws Exception {
+      long seed = args.length > 0 ? Long.parseLong(args[0]) : 24;
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+      SimpleDB.initFileAndLogMgr(new SimulatedFileMgr("flighttest", READ_DELAY));
+      singleFlight(new BufferMgr(POOL_SIZE), rounds);
+      System.out.println("single flight ok: " + rounds + " rounds");
+
+      SimpleDB.initFileAndLogMgr("flighttest");
+      new File(SimpleDB.dbDirectory(), FILE).delete();
+      new File(SimpleDB.dbDirectory(), FILE + "new").delete();
+      BufferMgr bfr = new BufferMgr(POOL_SIZE);
+      for (int n = 0; n < BLOCKS; n++) {
+         Buffer buff = bfr.pinNew(FILE, blank);
+         buff.setInt(0, n, 1, -1);
+         bfr.unpin(buff);
+      }
+      bfr.flushAll(1);
+      int[] expected = new int[BLOCKS];
+      int appended = replacements(new Random(seed), rounds * 250, expected);
+      Page p = new Page();
+      for (int n = 0; n < BLOCKS; n++) {
+         p.read(new Block(FILE, n));
+         if (p.getInt(0) != n || p.getInt(4) != expected[n])
+            throw new AssertionError("block " + n + " holds " + p.getInt(0) + "/" + p.getInt(4)
+                  + ", expected " + n + "/" + expected[n]);
+      }
+      System.out.println("replacements ok: " + appended + " new blocks");
+   }
+
+   // Each round, the threads pin a new block at the same moment, and the
+   // driver pins a block it holds while they wait. Simulated reads fill the
+   // page with zeros, so every buffer is left holding a nonzero value, which
+   // a thread that did not wait for the read would see. The pool's bean
+   // counts the misses.
+   private static void singleFlight(final BufferMgr bfr, int rounds) throws Exception {
+      bfr.registerMBean();
+      BufferPoolMXBean bean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+            new ObjectName(BufferMgr.MBEAN_NAME), BufferPoolMXBean.class);
+      Block hot = new Block(FILE, 0);
+      Buffer held = bfr.pin(hot);
+      for (int n = 1; n < POOL_SIZE; n++) {
+         Buffer buff = bfr.pin(new Block(FILE, n));
+         buff.setInt(0, -1, 1, -1);
+         bfr.unpin(buff);
+      }
+      for (int round = 0; round < rounds; round++) {
+         final Block target = new Block(FILE, POOL_SIZE + round);
+         long misses = bean.getMisses();
+         final CountDownLatch start = new CountDownLatch(1);
+         final Buffer[] got = new Buffer[THREADS];
+         final int[] seen = new int[THREADS];
+         Thread[] threads = new Thread[THREADS];
+         for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+               public void run() {
+                  try {
+                     start.await();
+                  }
+                  catch (InterruptedException e) {
+                     return;
+                  }
+                  got[id] = bfr.pin(target);
+                  seen[id] = got[id].getInt(0);
+               }
+            };
+            threads[t].start();
+         }
+         start.countDown();
+         Thread.sleep(READ_DELAY / 5);
+         long begin = System.nanoTime();
+         bfr.unpin(bfr.pin(hot));
+         long hitMillis = (System.nanoTime() - begin) / 1000000;
+         if (hitMillis >= READ_DELAY)
+            throw new AssertionError("round " + round + ": a hit waited " + hitMillis + " ms for a read");
+         for (Thread t : threads)
+            t.join();
+         for (int t = 0; t < THREADS; t++) {
+            if (got[t] != got[0])
+               throw new AssertionError("round " + round + ": " + target + " pinned in two buffers");
+            if (!target.equals(got[t].block()) || seen[t] != 0)
+               throw new AssertionError("round " + round + ": buffer held " + got[t].block()
+                     + " with " + seen[t] + " when pinned, expected " + target);
+         }
+         if (bean.getMisses() - misses != 1)
+            throw new AssertionError("round " + round + ": " + target + " read "
+                  + (bean.getMisses() - misses) + " times");
+         got[0].setInt(0, -1, 1, -1);
+         for (int t = 0; t < THREADS; t++) {
+            if (bfr.available() != POOL_SIZE - 2)
+               throw new AssertionError("round " + round + ": buffer unpinned after " + t + " unpins");
+            bfr.unpin(got[t]);
+         }
+         if (bfr.available() != POOL_SIZE - 1)
+            throw new AssertionError("round " + round + ": " + bfr.available() + " buffers available");
+      }
+      bfr.unpin(held);
+   }
+
+   // Thread i modifies only the blocks whose number is i modulo the number
+   // of threads, counting at offset 4, and reads every block; every fourth
+   // thread also appends blocks. The pool has eight buffers in two
+   // partitions. Returns the number of blocks appended.
+   private static int replacements(final Random r, final int ops, final int[] expected) throws Exception {
+      final BufferMgr bfr = new BufferMgr(8, 2, false);
+      final Set<Integer> appended = ConcurrentHashMap.newKeySet();
+      final Throwable[] failure = new Throwable[1];
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < THREADS; t++) {
+         final int id = t;
+         final Random tr = new Random(r.nextLong());
+         threads.add(new Thread() {
+            public void run() {
+               try {
+                  for (int i = 0; i < ops / THREADS; i++) {
+                     try {
+                        if (id % 4 == 0 && i % 10 == 0)
+                           append(bfr, appended);
+                        else
+                           modify(bfr, tr.nextInt(BLOCKS), id, expected);
+                     }
+                     catch (BufferAbortException e) {
+                     }
+                  }
+               }
+               catch (Throwable e) {
+                  failure[0] = e;
+               }
+            }
+         });
+      }
+      for (Thread t : threads)
+         t.start();
+      for (Thread t : threads)
+         t.join();
+      if (failure[0] != null)
+         throw new AssertionError("replacements: " + failure[0]);
+      if (bfr.available() != bfr.size())
+         throw new AssertionError("replacements: " + bfr.available() + " of " + bfr.size()
+               + " buffers available");
+      for (int t = 0; t < THREADS; t++)
+         bfr.flushAll(t);
+      if (bfr.dirtyCount() != 0)
+         throw new AssertionError("replacements: " + bfr.dirtyCount() + " dirty buffers left");
+      return appended.size();
+   }
+
+   // Pins the block and checks it; the thread that owns the block also
+   // increments its count.
+   private static void modify(BufferMgr bfr, int n, int id, int[] expected) {
+      Buffer buff = bfr.pin(new Block(FILE, n), 1000);
+      try {
+         if (buff.block().number() != n || !buff.block().fileName().equals(FILE) || buff.getInt(0) != n)
+            throw new AssertionError("pin of block " + n + " got " + buff.block() + " with " + buff.getInt(0));
+         if (n % THREADS == id) {
+            if (buff.getInt(4) != expected[n])
+               throw new AssertionError("block " + n + " counts " + buff.getInt(4) + ", expected " + expected[n]);
+            expected[n]++;
+            buff.setInt(4, expected[n], id, -1);
+         }
+         Thread.yield();
+      }
+      finally {
+         bfr.unpin(buff);
+      }
+   }
+
+   private static void append(BufferMgr bfr, Set<Integer> appended) {
+      Buffer buff = bfr.pinNew(FILE + "new", blank, 1000);
+      try {
+         if (buff.getInt(0) != -1 || buff.getInt(4) != 0)
+            throw new AssertionError("new block " + buff.block() + " not formatted");
+         if (!appended.add(buff.block().number()))
+            throw new AssertionError("block " + buff.block() + " appended twice");
+      }
+      finally {
+         bfr.unpin(buff);
+      }
+   }
+}
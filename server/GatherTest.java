@@ -0,0 +1,189 @@
+package simpledb.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferAbortException;
+import simpledb.buffer.BufferMgr;
+import simpledb.buffer.PageFormatter;
+import simpledb.file.Block;
+import simpledb.file.Page;
+
+/**
+ * Checks the file contents left by flushAll, which writes each run of
+ * consecutive dirty blocks of a file with a single gathering write. The
+ * pool is off-heap, so that runs are gathered, and the database is on disk.
+ * After each flush every block is read back from the file, around the
+ * pool, and compared with what the driver wrote to it.
+ * <p>
+ * Four cases are run. Blocks modified in runs with gaps between them, some
+ * of the gaps being blocks that are pinned or that another transaction
+ * modified: the gaps must keep their old contents, and the other
+ * transaction's block must stay dirty. Buffers still pinned in the middle
+ * of a run: they are written with it. More than two runs' worth of
+ * consecutive blocks, which flushAll splits into several writes: every
+ * block must reach the file. And flushes that race with pins moving buffers
+ * between partitions: a buffer skipped by the flush because it was moving
+ * must be put back in the dirty table, so that the last flush leaves no
+ * dirty buffer and the file holds the last value written to each block.
+ * <p>
+ * Usage: <code>java simpledb.server.GatherTest [seed [rounds]]</code>
+ */
+public class GatherTest {
+   private static final String FILE = "gather";
+   private static final int BLOCKS = 150;
+
+   private static PageFormatter zeros = new PageFormatter() {
+      public void format(Page p) {
+         p.setInt(0, 0);
+      }
+   };
+
+   public static void main(String args[]) throws Exception {
+      long seed = args.length > 0 ? Long.parseLong(args[0]) : 19;
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+      SimpleDB.initFileAndLogMgr("gathertest");
+      new File(SimpleDB.dbDirectory(), FILE).delete();
+      new File(SimpleDB.dbDirectory(), FILE + "x").delete();
+      int[] expected = new int[BLOCKS];
+      BufferMgr bfr = new BufferMgr(BLOCKS + 10, 2, true);
+      for (int i = 0; i < BLOCKS; i++)
+         bfr.unpin(bfr.pinNew(FILE, zeros));
+
+      // Runs with gaps; block 10 is pinned and block 13 is another's
+      Buffer pinnedGap = bfr.pin(new Block(FILE, 10));
+      Buffer otherTx = bfr.pin(new Block(FILE, 13));
+      otherTx.setInt(0, -13, 9, -1);
+      int[] gapped = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 11, 12, 14, 15, 16, 40, 41, 99 };
+      for (int n : gapped)
+         modify(bfr, n, 1000 + n, 1, expected, false);
+      bfr.flushAll(1);
+      check(expected, "gaps");
+      if (bfr.dirtyCount() != 1)
+         throw new AssertionError("gaps: " + bfr.dirtyCount() + " dirty buffers, expected 1");
+      bfr.unpin(pinnedGap);
+      bfr.unpin(otherTx);
+      bfr.flushAll(9);
+      expected[13] = -13;
+      check(expected, "other transaction");
+      System.out.println("gaps ok");
+
+      // Buffers pinned in the middle of a run are written with it
+      List<Buffer> held = new ArrayList<Buffer>();
+      for (int n = 20; n < 30; n++)
+         held.add(modify(bfr, n, 2000 + n, 2, expected, n % 3 == 0));
+      bfr.flushAll(2);
+      check(expected, "pinned mid-run");
+      for (Buffer buff : held)
+         if (buff != null)
+            bfr.unpin(buff);
+      System.out.println("pinned mid-run ok");
+
+      // More consecutive blocks than two runs hold
+      for (int n = 0; n < BLOCKS; n++)
+         modify(bfr, n, 3000 + n, 3, expected, false);
+      bfr.flushAll(3);
+      check(expected, "long run");
+      if (bfr.dirtyCount() != 0)
+         throw new AssertionError("long run: " + bfr.dirtyCount() + " dirty buffers left");
+      System.out.println("long run ok");
+
+      // Flushes racing with buffers handed between partitions
+      races(new Random(seed), rounds, expected);
+      check(expected, "races");
+      System.out.println("races ok: " + rounds + " rounds");
+   }
+
+   // Pins the block, writes the value for the transaction, and unpins the
+   // buffer unless it is to stay pinned, in which case it is returned.
+   private static Buffer modify(BufferMgr bfr, int n, int value, int txnum, int[] expected, boolean keep) {
+      Buffer buff = bfr.pin(new Block(FILE, n));
+      buff.setInt(0, value, txnum, -1);
+      expected[n] = value;
+      if (keep)
+         return buff;
+      bfr.unpin(buff);
+      return null;
+   }
+
+   // One thread modifies runs of blocks in a small two-partition pool while
+   // another keeps flushing them, and others pin blocks of another file with
+   // a wait, so that unpinned buffers are taken from one partition, in the
+   // middle of a flush, and handed to a waiter of the other. The pool is
+   // flushed once more at the end.
+   private static void races(final Random r, final int rounds, final int[] expected) throws Exception {
+      final BufferMgr bfr = new BufferMgr(8, 2, true);
+      for (int i = 0; i < 8; i++)
+         bfr.unpin(bfr.pinNew(FILE + "x", zeros));
+      final AtomicBoolean done = new AtomicBoolean();
+      final Throwable[] failure = new Throwable[1];
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 7; t++) {
+         final Random pr = new Random(r.nextLong());
+         threads.add(new Thread() {
+            public void run() {
+               while (!done.get()) {
+                  try {
+                     Buffer buff = bfr.pin(new Block(FILE + "x", pr.nextInt(8)), 1000);
+                     Thread.yield();
+                     bfr.unpin(buff);
+                  }
+                  catch (BufferAbortException e) {
+                  }
+               }
+            }
+         });
+      }
+      threads.add(new Thread() {
+         public void run() {
+            try {
+               while (!done.get())
+                  bfr.flushAll(4);
+            }
+            catch (Throwable e) {
+               failure[0] = e;
+            }
+         }
+      });
+      for (Thread t : threads)
+         t.start();
+      try {
+         for (int i = 0; i < rounds && failure[0] == null; i++) {
+            int first = r.nextInt(BLOCKS - 4);
+            for (int n = first; n < first + 4; n++) {
+               try {
+                  modify(bfr, n, 4000 + i, 4, expected, false);
+               }
+               catch (BufferAbortException e) {
+               }
+            }
+         }
+      }
+      finally {
+         done.set(true);
+         for (Thread t : threads)
+            t.join();
+      }
+      if (failure[0] != null)
+         throw new AssertionError("races: flushAll failed: " + failure[0]);
+      bfr.flushAll(4);
+      if (bfr.dirtyCount() != 0)
+         throw new AssertionError("races: " + bfr.dirtyCount() + " dirty buffers left");
+   }
+
+   // Reads every block back from the file and compares it with the value
+   // last written to it.
+   private static void check(int[] expected, String what) {
+      Page p = new Page();
+      for (int n = 0; n < BLOCKS; n++) {
+         p.read(new Block(FILE, n));
+         if (p.getInt(0) != expected[n])
+            throw new AssertionError(what + ": block " + n + " holds " + p.getInt(0)
+                  + ", expected " + expected[n]);
+      }
+   }
+}
@@ -0,0 +1,66 @@
+package simpledb.server;
+
+import java.util.Random;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferMgr;
+import simpledb.buffer.StandardPolicy;
+import simpledb.file.Block;
+import simpledb.file.SimulatedFileMgr;
+
+/**
+ * Compares the hit ratio of each standard replacement policy on a workload
+ * that mixes a skewed OLTP working set with large sequential scans. Most
+ * pins go to the first few of 400 "oltp" blocks; now and then a scan of
+ * 3000 "scan" blocks starts and takes every other pin until it is done. The
+ * pool has 128 buffers in one partition, and every block is unpinned as soon
+ * as it is pinned. The same seeded trace is run against each policy.
+ * <p>
+ * This is the workload the ARC policy was compared on. A scan-resistant
+ * policy should keep more of the OLTP blocks through the scans, and so have
+ * a higher hit ratio than the recency-based ones.
+ * <p>
+ * Usage: <code>java simpledb.server.HitRatioTest [seed [pins]]</code>
+ */
+public class HitRatioTest {
+   private static final int POOL_SIZE = 128;
+   private static final int OLTP_BLOCKS = 400;
+   private static final int SCAN_BLOCKS = 3000;
+
+   public static void main(String args[]) throws Exception {
+      long seed = args.length > 0 ? Long.parseLong(args[0]) : 3;
+      int pins = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+      SimpleDB.initFileAndLogMgr(new SimulatedFileMgr("hitratio"));
+      for (StandardPolicy policy : StandardPolicy.values()) {
+         double ratio = run(new BufferMgr(POOL_SIZE, 1, false, policy), new Random(seed), pins);
+         System.out.println(policy + " hit ratio " + String.format("%.3f", ratio));
+      }
+   }
+
+   // Runs the trace against the pool, and returns the fraction of pins that
+   // found their block already in the pool.
+   static double run(BufferMgr bfr, Random r, int pins) {
+      long hits = 0;
+      int scanPos = -1;
+      for (int i = 0; i < pins; i++) {
+         Block blk;
+         if (scanPos < 0 && r.nextInt(5000) == 0)
+            scanPos = 0;
+         if (scanPos >= 0 && i % 2 == 0) {
+            blk = new Block("scan", scanPos++);
+            if (scanPos == SCAN_BLOCKS)
+               scanPos = -1;
+         }
+         else {
+            // Skewed towards the first blocks
+            int k = (int) Math.floor(Math.pow(r.nextDouble(), 3) * OLTP_BLOCKS);
+            blk = new Block("oltp", k);
+         }
+         if (bfr.bufferMgr.getMapping(blk) != null)
+            hits++;
+         Buffer buff = bfr.pin(blk);
+         bfr.unpin(buff);
+      }
+      return (double) hits / pins;
+   }
+}
@@ -0,0 +1,292 @@
+package simpledb.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferMgr;
+import simpledb.buffer.PageFormatter;
+import simpledb.buffer.ReplacementPolicy;
+import simpledb.buffer.StandardPolicy;
+import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.file.SimulatedFileMgr;
+
+/**
+ * Checks that the Least Recently Modified policy picks the same victims as
+ * the linear scan that chooseUnpinnedBuffer used to do over bufferPoolMap.
+ * A seeded trace of pins, new blocks, modifications, unpins and flushAll
+ * calls is run against a one-partition pool. The driver keeps its own copy
+ * of each buffer's pins, modifying transaction and LSN, and before every
+ * miss works out the victim with the old scan; the pool must then use that
+ * buffer.
+ * <p>
+ * The old scan breaks two kinds of tie by HashMap iteration order. The
+ * scan here breaks them as the policy documents instead: among dirty buffers
+ * with equal LSNs the lowest buffer id goes first, and when no unpinned
+ * buffer is dirty with a log record, the buffer unpinned (or written back)
+ * longest ago goes. How often HashMap order would have chosen differently is
+ * reported.
+ * <p>
+ * The trace is run twice: against a pool built with the default policy,
+ * and against one whose policy is {@link StandardPolicy#LRM} reached only
+ * through the {@link ReplacementPolicy} interface. In the second run every
+ * victim the policy offers is also checked against the scan as it is
+ * offered, so the policy is shown to need nothing beyond the events the
+ * interface reports.
+ * <p>
+ * Usage: <code>java simpledb.server.LrmTest [seed [operations]]</code>
+ */
+public class LrmTest {
+   private static final int POOL_SIZE = 8;
+
+   private BufferMgr bfr;
+   private HashMap<Buffer, State> states = new HashMap<Buffer, State>();
+   private long tick = 0;
+   private int victims = 0;
+   private int fallbacks = 0;
+   private int hashOrderDiffers = 0;
+   private int offered = 0;
+
+   public static void main(String args[]) throws Exception {
+      long seed = args.length > 0 ? Long.parseLong(args[0]) : 540;
+      int ops = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+      SimpleDB.initFileAndLogMgr(new SimulatedFileMgr("lrmtest"));
+      LrmTest t = new LrmTest(null);
+      t.run(new Random(seed), ops);
+      System.out.println("LRM ok: " + t.victims + " victims, " + t.fallbacks
+            + " from the clean fallback, " + t.hashOrderDiffers
+            + " of which HashMap order would have chosen differently");
+      t = new LrmTest(StandardPolicy.LRM);
+      t.run(new Random(seed), ops);
+      System.out.println("LRM through ReplacementPolicy ok: " + t.victims + " victims, "
+            + t.offered + " offers checked");
+   }
+
+   // Builds the pool with the default policy if none is given, and otherwise
+   // with the given policy behind a check of every victim it offers.
+   LrmTest(ReplacementPolicy.Factory policy) {
+      if (policy == null)
+         bfr = new BufferMgr(POOL_SIZE);
+      else
+         bfr = new BufferMgr(POOL_SIZE, 1, false, checked(policy));
+   }
+
+   // Runs the trace. Every pinned buffer is unpinned at the end, so that the
+   // pool is left as it was found.
+   void run(Random r, int ops) {
+      List<Buffer> pinned = new ArrayList<Buffer>();
+      PageFormatter fmtr = new PageFormatter() {
+         public void format(Page p) {
+         }
+      };
+      int lsn = 0;
+      for (int i = 0; i < ops; i++) {
+         int op = r.nextInt(20);
+         if (op < 7 && bfr.available() > 0) {
+            Block blk = new Block("lrm" + r.nextInt(2), r.nextInt(12));
+            Buffer expected = victimFor(blk);
+            Buffer buff = bfr.pin(blk);
+            check(expected, buff, i);
+            pinned.add(buff);
+         }
+         else if (op < 8 && bfr.available() > 0) {
+            Buffer expected = victimFor(null);
+            Buffer buff = bfr.pinNew("lrmnew", fmtr);
+            check(expected, buff, i);
+            pinned.add(buff);
+         }
+         else if (op < 13 && !pinned.isEmpty()) {
+            Buffer buff = pinned.remove(r.nextInt(pinned.size()));
+            bfr.unpin(buff);
+            unpinned(buff);
+         }
+         else if (op < 17 && !pinned.isEmpty()) {
+            Buffer buff = pinned.get(r.nextInt(pinned.size()));
+            int txnum = r.nextInt(3);
+            // Some modifications need no log record
+            int recordLsn = r.nextInt(5) == 0 ? -1 : lsn++;
+            buff.setInt(0, i, txnum, recordLsn);
+            State s = state(buff);
+            s.txnum = txnum;
+            if (recordLsn >= 0)
+               s.lsn = recordLsn;
+         }
+         else if (op < 18) {
+            int txnum = r.nextInt(3);
+            bfr.flushAll(txnum);
+            flushed(txnum);
+         }
+      }
+      for (Buffer buff : pinned) {
+         bfr.unpin(buff);
+         unpinned(buff);
+      }
+   }
+
+   // The buffer the old scan would replace to bring in the block, or null if
+   // the block is in the pool or a free buffer will be used. A null block
+   // stands for a new block.
+   private Buffer victimFor(Block blk) {
+      if (blk != null && bfr.bufferMgr.getMapping(blk) != null)
+         return null;
+      if (!bfr.bufferMgr.freeBuffers.isEmpty())
+         return null;
+      Buffer buff = scan();
+      if (state(buff).txnum < 0 || state(buff).lsn < 0) {
+         fallbacks++;
+         for (Buffer current : bfr.bufferMgr.bufferPoolMap.values())
+            if (state(current).pins == 0) {
+               if (current != buff)
+                  hashOrderDiffers++;
+               break;
+            }
+      }
+      return buff;
+   }
+
+   // The old scan, with ties broken as described above.
+   private Buffer scan() {
+      // Chooses modified page with lowest non-negative LSN
+      Buffer buff = null;
+      for (Buffer current : bfr.bufferMgr.bufferPoolMap.values()) {
+         State s = state(current);
+         if (s.pins == 0 && s.txnum >= 0 && s.lsn >= 0
+               && (buff == null || s.lsn < state(buff).lsn
+                     || (s.lsn == state(buff).lsn && current.getBufferIndex() < buff.getBufferIndex())))
+            buff = current;
+      }
+      if (buff != null)
+         return buff;
+      // Otherwise the unpinned buffer that has waited longest
+      for (Buffer current : bfr.bufferMgr.bufferPoolMap.values()) {
+         State s = state(current);
+         if (s.pins == 0 && (buff == null || s.since < state(buff).since))
+            buff = current;
+      }
+      return buff;
+   }
+
+   // Wraps each policy the factory makes so that every victim it offers is
+   // checked against the scan. Every other event is passed straight on.
+   private ReplacementPolicy.Factory checked(final ReplacementPolicy.Factory factory) {
+      return new ReplacementPolicy.Factory() {
+         public ReplacementPolicy newPolicy() {
+            final ReplacementPolicy policy = factory.newPolicy();
+            return new ReplacementPolicy() {
+               public void accessed(Buffer buff) {
+                  policy.accessed(buff);
+               }
+
+               public void pinned(Buffer buff) {
+                  policy.pinned(buff);
+               }
+
+               public void unpinned(Buffer buff) {
+                  policy.unpinned(buff);
+               }
+
+               public void dirtied(Buffer buff) {
+                  policy.dirtied(buff);
+               }
+
+               public void flushed(Buffer buff) {
+                  policy.flushed(buff);
+               }
+
+               public void evicted(Buffer buff) {
+                  policy.evicted(buff);
+               }
+
+               public void detached(Buffer buff) {
+                  policy.detached(buff);
+               }
+
+               public void prefetched(Buffer buff) {
+                  policy.prefetched(buff);
+               }
+
+               public Buffer chooseVictim() {
+                  Buffer buff = policy.chooseVictim();
+                  Buffer expected = scan();
+                  if (buff != expected)
+                     throw new AssertionError("the policy offered buffer "
+                           + (buff == null ? null : buff.getBufferIndex()) + " but the scan chose buffer "
+                           + (expected == null ? null : expected.getBufferIndex()));
+                  offered++;
+                  return buff;
+               }
+
+               public Buffer chooseDirty(int limit) {
+                  return policy.chooseDirty(limit);
+               }
+
+               public Buffer chooseClean(int limit) {
+                  return policy.chooseClean(limit);
+               }
+            };
+         }
+      };
+   }
+
+   private void check(Buffer expected, Buffer buff, int op) {
+      State s = state(buff);
+      if (expected != null) {
+         victims++;
+         if (buff != expected)
+            throw new AssertionError("operation " + op + ": the scan chose buffer " + expected.getBufferIndex()
+                  + " but the pool replaced buffer " + buff.getBufferIndex());
+         // A dirty victim is written back before it is replaced
+         s.txnum = -1;
+      }
+      s.pins++;
+   }
+
+   private void unpinned(Buffer buff) {
+      State s = state(buff);
+      if (--s.pins == 0)
+         s.since = tick++;
+   }
+
+   // flushAll writes the pages in file and block order. An unpinned buffer
+   // that was dirty with a log record then goes behind the other candidates.
+   private void flushed(int txnum) {
+      List<Buffer> written = new ArrayList<Buffer>();
+      for (Buffer buff : states.keySet())
+         if (states.get(buff).txnum == txnum)
+            written.add(buff);
+      Collections.sort(written, new Comparator<Buffer>() {
+         public int compare(Buffer b1, Buffer b2) {
+            int c = b1.block().fileName().compareTo(b2.block().fileName());
+            return c != 0 ? c : b1.block().number() - b2.block().number();
+         }
+      });
+      for (Buffer buff : written) {
+         State s = state(buff);
+         s.txnum = -1;
+         if (s.pins == 0 && s.lsn >= 0)
+            s.since = tick++;
+      }
+   }
+
+   private State state(Buffer buff) {
+      State s = states.get(buff);
+      if (s == null) {
+         s = new State();
+         states.put(buff, s);
+      }
+      return s;
+   }
+
+   // What the driver knows of a buffer.
+   private static class State {
+      int pins = 0;
+      int txnum = -1;
+      int lsn = -1;
+      long since = -1;
+   }
+}
@@ -0,0 +1,109 @@
+package simpledb.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferAbortException;
+import simpledb.buffer.BufferMgr;
+import simpledb.file.Block;
+import simpledb.file.SimulatedFileMgr;
+
+/**
+ * Checks that the pins a transaction makes with its number are counted
+ * against its own quota and reservation only. An eight-buffer pool is used,
+ * first with a pin quota of 1 and then with a reservation and no quota.
+ * <p>
+ * A plain unpin of a buffer another transaction also holds a counted pin
+ * on must not take that pin off the transaction's count: once the
+ * transaction has pinned one block, its second pin must abort whoever
+ * else pins and unpins the first. Only an unpin with the transaction's own
+ * number, or its release, frees the quota, and release leaves every buffer
+ * available.
+ * <p>
+ * A reservation must keep its size across unpins. When a transaction
+ * unpins a pin that used a reserved frame while every other buffer is
+ * pinned, the frame cannot be taken back at once; it is owed, and the
+ * transaction's next pin takes it as soon as a buffer is unpinned, so that
+ * the pool is left with as many buffers out as before.
+ * <p>
+ * Usage: <code>java simpledb.server.QuotaTest</code>
+ */
+public class QuotaTest {
+   private static final int POOL_SIZE = 8;
+
+   public static void main(String args[]) throws Exception {
+      SimpleDB.initFileAndLogMgr(new SimulatedFileMgr("quotatest"));
+      quota(new BufferMgr(POOL_SIZE));
+      System.out.println("quota ok");
+      reservation(new BufferMgr(POOL_SIZE));
+      System.out.println("reservation ok");
+   }
+
+   // Transaction 1 holds its one allowed pin while transaction 2 pins and
+   // unpins the same block, with and without its number.
+   static void quota(BufferMgr bfr) {
+      bfr.setPinQuota(1);
+      Block a = new Block("quota", 0);
+      Block b = new Block("quota", 1);
+      Buffer a1 = bfr.pin(1, a);
+      bfr.unpin(bfr.pin(a));
+      expectAbort(bfr, 1, b, "after another thread's plain unpin");
+      bfr.unpin(2, bfr.pin(2, a));
+      expectAbort(bfr, 1, b, "after another transaction's unpin");
+      bfr.unpin(1, a1);
+      Buffer b1 = bfr.pin(1, b);
+      bfr.unpin(b1);
+      expectAbort(bfr, 1, a, "after its own plain unpin");
+      bfr.release(1);
+      bfr.unpin(1, bfr.pin(1, a));
+      bfr.release(1);
+      bfr.release(2);
+      expectAvailable(bfr, POOL_SIZE, "after release");
+   }
+
+   // Transaction 3 reserves two frames, and unpins one of its pins while
+   // the buffer is also pinned by someone else and every other buffer is
+   // pinned.
+   static void reservation(BufferMgr bfr) {
+      bfr.reserve(3, 2);
+      expectAvailable(bfr, POOL_SIZE - 2, "after reserving");
+      Buffer x = bfr.pin(3, new Block("res", 0));
+      Buffer y = bfr.pin(3, new Block("res", 1));
+      expectAvailable(bfr, POOL_SIZE - 2, "with the reserved frames pinned");
+      Buffer shared = bfr.pin(new Block("res", 0));
+      List<Buffer> others = new ArrayList<Buffer>();
+      for (int i = 0; i < POOL_SIZE - 2; i++)
+         others.add(bfr.pin(new Block("other", i)));
+      expectAvailable(bfr, 0, "with the pool full");
+      bfr.unpin(3, x);
+      expectAvailable(bfr, 0, "with a frame owed");
+      bfr.unpin(others.remove(0));
+      Buffer z = bfr.pin(3, new Block("res", 2));
+      expectAvailable(bfr, 0, "once the owed frame was taken");
+      bfr.unpin(shared);
+      expectAvailable(bfr, 1, "with the shared buffer unpinned");
+      bfr.unpin(3, y);
+      bfr.unpin(3, z);
+      for (Buffer buff : others)
+         bfr.unpin(buff);
+      expectAvailable(bfr, POOL_SIZE - 2, "with the reservation unused");
+      bfr.release(3);
+      expectAvailable(bfr, POOL_SIZE, "after release");
+   }
+
+   private static void expectAbort(BufferMgr bfr, int txnum, Block blk, String when) {
+      try {
+         bfr.pin(txnum, blk);
+      }
+      catch (BufferAbortException e) {
+         return;
+      }
+      throw new AssertionError("transaction " + txnum + " exceeded its quota " + when);
+   }
+
+   private static void expectAvailable(BufferMgr bfr, int n, String when) {
+      if (bfr.available() != n)
+         throw new AssertionError(bfr.available() + " buffers available " + when + ", expected " + n);
+   }
+}
@@ -0,0 +1,175 @@
+package simpledb.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferAbortException;
+import simpledb.buffer.BufferMgr;
+import simpledb.buffer.PageFormatter;
+import simpledb.file.Block;
+import simpledb.file.Page;
+
+/**
+ * Checks that the pool can be grown and shrunk while threads pin, modify and
+ * flush its blocks. The pool starts with eight buffers in four partitions,
+ * with the page cleaner running, and is resized through a list of sizes
+ * while twelve threads work on a file of 96 blocks. The database is on disk.
+ * <p>
+ * Each thread modifies only its own blocks, counting the changes it makes
+ * to each, and checks every block it pins: a buffer retired while dirty
+ * must be written back first, so no count may go missing. Growing must reach
+ * the size asked for; shrinking must stop between that size and the old
+ * one, since pinned buffers are waited for only so long. Once the threads
+ * have stopped, every buffer must be available, the idle pool must shrink
+ * to a single buffer and still serve pins, and after growing it again
+ * exactly as many blocks as it has buffers must be pinned at once. The file
+ * must then hold every count.
+ * <p>
+ * Usage: <code>java simpledb.server.ResizeTest [seed]</code>
+ */
+public class ResizeTest {
+   private static final String FILE = "resize";
+   private static final int THREADS = 12;
+   private static final int BLOCKS = 96;
+   private static final int[] SIZES = { 64, 4, 16, 2, 100, 12 };
+   private static final long MAX_WAIT = 500; // milliseconds
+
+   private static PageFormatter zeros = new PageFormatter() {
+      public void format(Page p) {
+         p.setInt(0, 0);
+         p.setInt(4, 0);
+      }
+   };
+
+   public static void main(String args[]) throws Exception {
+      long seed = args.length > 0 ? Long.parseLong(args[0]) : 15;
+      SimpleDB.initFileAndLogMgr("resizetest");
+      new File(SimpleDB.dbDirectory(), FILE).delete();
+      final BufferMgr bfr = new BufferMgr(8, 4, false);
+      for (int n = 0; n < BLOCKS; n++) {
+         Buffer buff = bfr.pinNew(FILE, zeros);
+         buff.setInt(0, n, 0, -1);
+         bfr.unpin(buff);
+      }
+      bfr.flushAll(0);
+      bfr.startCleaner(0.5, 0.75);
+
+      final int[] expected = new int[BLOCKS];
+      final AtomicBoolean done = new AtomicBoolean();
+      final Throwable[] failure = new Throwable[1];
+      Random r = new Random(seed);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < THREADS; t++) {
+         final int id = t;
+         final Random tr = new Random(r.nextLong());
+         threads.add(new Thread() {
+            public void run() {
+               try {
+                  for (int i = 0; !done.get(); i++) {
+                     try {
+                        modify(bfr, tr.nextInt(BLOCKS), id, tr.nextInt(3) == 0, expected);
+                        if (i % 9 == 0)
+                           bfr.flushAll(id + 1);
+                     }
+                     catch (BufferAbortException e) {
+                     }
+                  }
+               }
+               catch (Throwable e) {
+                  failure[0] = e;
+               }
+            }
+         });
+      }
+      for (Thread t : threads)
+         t.start();
+      try {
+         for (int size : SIZES) {
+            Thread.sleep(200);
+            int before = bfr.size();
+            int got = bfr.resize(size, MAX_WAIT);
+            if (got != bfr.size())
+               throw new AssertionError("resize to " + size + " returned " + got + " with " + bfr.size()
+                     + " buffers");
+            if (size > before ? got != size : got < size || got > before)
+               throw new AssertionError("resize from " + before + " to " + size + " reached " + got);
+            System.out.println("resize " + before + " to " + size + ": " + got);
+         }
+      }
+      finally {
+         done.set(true);
+         for (Thread t : threads)
+            t.join();
+      }
+      if (failure[0] != null)
+         throw new AssertionError("pins during resizes: " + failure[0]);
+      if (bfr.available() != bfr.size())
+         throw new AssertionError(bfr.available() + " of " + bfr.size() + " buffers available");
+      System.out.println("resizes under load ok");
+
+      idle(bfr, expected);
+      bfr.stopCleaner();
+      for (int t = 0; t <= THREADS; t++)
+         bfr.flushAll(t);
+      Page p = new Page();
+      for (int n = 0; n < BLOCKS; n++) {
+         p.read(new Block(FILE, n));
+         if (p.getInt(0) != n || p.getInt(4) != expected[n])
+            throw new AssertionError("block " + n + " holds " + p.getInt(0) + "/" + p.getInt(4)
+                  + ", expected " + n + "/" + expected[n]);
+      }
+      System.out.println("idle resizes ok");
+   }
+
+   // Shrinks the idle pool to one buffer and pins through it, then grows
+   // it back and fills it.
+   private static void idle(BufferMgr bfr, int[] expected) {
+      if (bfr.resize(1, MAX_WAIT) != 1 || bfr.available() != 1)
+         throw new AssertionError("idle pool shrank to " + bfr.size() + " with " + bfr.available()
+               + " available");
+      for (int n = 0; n < BLOCKS; n++)
+         modify(bfr, n, n % THREADS, false, expected);
+      int size = bfr.resize(12, MAX_WAIT);
+      if (size != 12 || bfr.available() != size)
+         throw new AssertionError("idle pool grew to " + size + " with " + bfr.available() + " available");
+      List<Buffer> pinned = new ArrayList<Buffer>();
+      for (int n = 0; n < size; n++)
+         pinned.add(bfr.pin(new Block(FILE, n), MAX_WAIT));
+      try {
+         bfr.pin(new Block(FILE, size), 100);
+         throw new AssertionError("pinned " + (size + 1) + " blocks in " + size + " buffers");
+      }
+      catch (BufferAbortException e) {
+      }
+      for (Buffer buff : pinned)
+         bfr.unpin(buff);
+      if (bfr.available() != size)
+         throw new AssertionError(bfr.available() + " of " + size + " buffers available");
+   }
+
+   // Pins the block and checks it; the thread that owns the block may also
+   // count a change to it, as its transaction.
+   private static void modify(BufferMgr bfr, int n, int id, boolean change, int[] expected) {
+      Buffer buff = bfr.pin(new Block(FILE, n), 3000);
+      try {
+         if (!buff.block().equals(new Block(FILE, n)) || buff.getInt(0) != n)
+            throw new AssertionError("pin of block " + n + " got " + buff.block() + " with " + buff.getInt(0));
+         if (n % THREADS == id) {
+            if (buff.getInt(4) != expected[n])
+               throw new AssertionError("block " + n + " counts " + buff.getInt(4) + ", expected " + expected[n]);
+            if (change) {
+               expected[n]++;
+               buff.setInt(4, expected[n], id + 1, -1);
+            }
+         }
+         Thread.yield();
+      }
+      finally {
+         bfr.unpin(buff);
+      }
+   }
+}
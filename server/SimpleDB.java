@@ -1,5 +1,8 @@
 package simpledb.server;
 
+import java.io.File;
+import java.io.IOException;
+
 import simpledb.file.FileMgr;
 import simpledb.buffer.*;
 import simpledb.tx.Transaction;
@@ -24,20 +27,42 @@ import simpledb.index.planner.IndexUpdatePlanner;
  */
 public class SimpleDB {
    public static int BUFFER_SIZE = 3;
+   public static int BUFFER_PARTITIONS = 1;
+   public static boolean BUFFER_OFF_HEAP = false;
+   public static double BUFFER_CLEAN_FRACTION = 0;
+   public static double BUFFER_DIRTY_HIGH_WATER = 0.9;
+   public static int BUFFER_READ_AHEAD = 0;
+   public static ReplacementPolicy.Factory BUFFER_POLICY = StandardPolicy.LRM;
+   public static int BUFFER_TRACE_RECORDS = 0;
+   public static String BUFFER_POOLS = "";
+   public static int BUFFER_TX_PIN_QUOTA = 0;
+   public static boolean BUFFER_WARM_RESTART = false;
+   public static long BUFFER_SNAPSHOT_INTERVAL = 60000; // milliseconds
+   public static String BUFFER_SNAPSHOT_FILE = "bufferpool.snapshot";
    public static String LOG_FILE = "simpledb.log";
    
+   private static File        dbDirectory;
    private static FileMgr     fm;
    private static BufferMgr   bm;
    private static LogMgr      logm;
+   private static LogForcer   lf;
    private static MetadataMgr mdm;
    
    /**
     * Initializes the system.
     * This method is called during system startup.
+    * The buffer pool's statistics are published over JMX
+    * (see {@link BufferMgr#MBEAN_NAME}).
+    * If {@link #BUFFER_WARM_RESTART} is set, the blocks that were
+    * in the buffer pool when the previous run stopped are reloaded
+    * in the background, and a snapshot of the pool is saved in
+    * {@link #BUFFER_SNAPSHOT_FILE} every {@link #BUFFER_SNAPSHOT_INTERVAL}
+    * milliseconds and when the JVM shuts down.
     * @param dirname the name of the database directory
     */
    public static void init(String dirname) {
       initFileLogAndBufferMgr(dirname);
+      bm.registerMBean();
       Transaction tx = new Transaction();
       boolean isnew = fm.isNew();
       if (isnew)
@@ -48,6 +73,35 @@ public class SimpleDB {
       }
       initMetadataMgr(isnew, tx);
       tx.commit();
+      if (BUFFER_WARM_RESTART)
+         startWarmRestart();
+   }
+   
+   // Reloads the last snapshot of the buffer pool, if there is one, and
+   // arranges for new ones to be saved.
+   private static void startWarmRestart() {
+      final BufferMgr pool = bm;
+      final File snapshot = new File(dbDirectory, BUFFER_SNAPSHOT_FILE);
+      if (snapshot.exists()) {
+         try {
+            pool.warmUp(snapshot);
+         }
+         catch (IOException e) {
+            System.out.println("cannot reload buffer pool: " + e.getMessage());
+         }
+      }
+      if (BUFFER_SNAPSHOT_INTERVAL > 0)
+         pool.startSnapshots(snapshot, BUFFER_SNAPSHOT_INTERVAL);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            try {
+               pool.saveResidency(snapshot);
+            }
+            catch (IOException e) {
+               // the last periodic snapshot remains
+            }
+         }
+      });
    }
    
    // The following initialization methods are useful for 
@@ -60,6 +114,22 @@ public class SimpleDB {
     */
    public static void initFileMgr(String dirname) {
       fm = new FileMgr(dirname);
+      dbDirectory = new File(System.getProperty("user.home"), dirname);
+   }
+   
+   /**
+    * Initializes the log manager on the specified file manager,
+    * which need not be backed by disk (see
+    * {@link simpledb.file.SimulatedFileMgr}). Tools that exercise
+    * the buffer manager offline call this instead of
+    * {@link #initFileAndLogMgr(String)}.
+    * @param filemgr the file manager
+    */
+   public static void initFileAndLogMgr(FileMgr filemgr) {
+      fm = filemgr;
+      dbDirectory = null;
+      logm = new LogMgr(LOG_FILE);
+      lf = new LogForcer(logm);
    }
    
    /**
@@ -69,15 +139,51 @@ public class SimpleDB {
    public static void initFileAndLogMgr(String dirname) {
       initFileMgr(dirname);
       logm = new LogMgr(LOG_FILE);
+      lf = new LogForcer(logm);
    }
    
    /**
     * Initializes the file, log, and buffer managers.
+    * The buffer pool is split into {@link #BUFFER_PARTITIONS}
+    * independently locked partitions, whose pages are held off
+    * the Java heap if {@link #BUFFER_OFF_HEAP} is set, and buffers are
+    * replaced according to {@link #BUFFER_POLICY}. If {@link #BUFFER_CLEAN_FRACTION}
+    * is positive, a background page cleaner is started, and if
+    * {@link #BUFFER_READ_AHEAD} is positive, sequential scans are
+    * read up to that many blocks ahead. If {@link #BUFFER_TRACE_RECORDS}
+    * is positive, buffer events are recorded in an {@link EventTracer}
+    * ring of that size.
+    * <p>
+    * {@link #BUFFER_POOLS} lists the named sub-pools to add, separated
+    * by semicolons. Each is given as its name, size, standard policy
+    * and file-name pattern, separated by commas, as in
+    * <code>keep,16,LRU,(tblcat|fldcat|viewcat|idxcat)\.tbl</code>
+    * (see {@link BufferMgr#addPool(String, String, int, ReplacementPolicy.Factory)}).
+    * If {@link #BUFFER_TX_PIN_QUOTA} is positive, a transaction may hold
+    * at most that many pins beyond the frames it has reserved
+    * (see {@link BufferMgr#setPinQuota(int)}).
     * @param dirname the name of the database directory
     */
    public static void initFileLogAndBufferMgr(String dirname) {
       initFileAndLogMgr(dirname);
-      bm = new BufferMgr(BUFFER_SIZE);
+      bm = new BufferMgr(BUFFER_SIZE, BUFFER_PARTITIONS, BUFFER_OFF_HEAP, BUFFER_POLICY);
+      for (String spec : BUFFER_POOLS.split(";")) {
+         if (spec.trim().isEmpty())
+            continue;
+         String[] f = spec.split(",", 4);
+         if (f.length < 4)
+            throw new IllegalArgumentException("bad buffer pool " + spec);
+         bm.addPool(f[0].trim(), f[3].trim(), Integer.parseInt(f[1].trim()),
+                    StandardPolicy.valueOf(f[2].trim()));
+      }
+      if (BUFFER_TX_PIN_QUOTA > 0)
+         bm.setPinQuota(BUFFER_TX_PIN_QUOTA);
+      if (BUFFER_CLEAN_FRACTION > 0)
+         bm.startCleaner(BUFFER_CLEAN_FRACTION, BUFFER_DIRTY_HIGH_WATER);
+      if (BUFFER_READ_AHEAD > 0)
+         bm.startReadAhead(BUFFER_READ_AHEAD);
+      if (BUFFER_TRACE_RECORDS > 0)
+         EventTracer.start(BUFFER_TRACE_RECORDS);
    }
    
    /**
@@ -95,6 +201,22 @@ public class SimpleDB {
    public static LogMgr      logMgr()    { return logm; }
    public static MetadataMgr mdMgr()     { return mdm; }
    
+   /**
+    * Returns the coordinator through which the log is forced,
+    * so that concurrent forces share one write.
+    * @return the log forcer
+    */
+   public static LogForcer   logForcer() { return lf; }
+   
+   /**
+    * Returns the directory holding the database files.
+    * This is the directory that the file manager uses.
+    * @return the database directory
+    */
+   public static File dbDirectory() {
+      return dbDirectory;
+   }
+   
    /**
     * Creates a planner for SQL commands.
     * To change how the planner works, modify this method.
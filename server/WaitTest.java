@@ -0,0 +1,155 @@
+package simpledb.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import simpledb.buffer.Buffer;
+import simpledb.buffer.BufferAbortException;
+import simpledb.buffer.BufferMgr;
+import simpledb.file.Block;
+import simpledb.file.SimulatedFileMgr;
+
+/**
+ * Checks the queue of threads waiting for a buffer when every buffer is
+ * pinned. Each buffer that is unpinned is handed to one waiting thread, the
+ * one that has waited longest, whichever partition the buffer and the
+ * thread's block belong to. A four-buffer pool in two partitions is used.
+ * <p>
+ * Two cases are run. Threads start waiting one after another while the
+ * driver holds every buffer, and the driver then unpins its buffers one at
+ * a time: the threads must get their buffers in the order they started
+ * waiting, and no later one may get a buffer before an earlier one. Then,
+ * round after round, a thread waits with a short timeout while the driver
+ * unpins a buffer at about the moment the timeout expires: whether the
+ * thread got the buffer or gave up, once it is done the buffer must be
+ * available again, so that no buffer is ever lost to a thread that is no
+ * longer waiting.
+ * <p>
+ * Usage: <code>java simpledb.server.WaitTest [seed [rounds]]</code>
+ */
+public class WaitTest {
+   private static final int POOL_SIZE = 4;
+   private static final int WAITERS = 8;
+   private static final long TIMEOUT = 5; // milliseconds
+
+   public static void main(String args[]) throws Exception {
+      long seed = args.length > 0 ? Long.parseLong(args[0]) : 3;
+      int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+      SimpleDB.initFileAndLogMgr(new SimulatedFileMgr("waittest"));
+      BufferMgr bfr = new BufferMgr(POOL_SIZE, 2);
+      fifo(bfr);
+      System.out.println("fifo ok: " + WAITERS + " waiters");
+      int[] got = timeouts(bfr, new Random(seed), rounds);
+      System.out.println("timeouts ok: " + got[0] + " handed, " + got[1] + " timed out");
+   }
+
+   // The driver pins the whole pool, starts the waiters one by one, and
+   // unpins a buffer each time a waiter is to be served; served waiters
+   // unpin theirs only at the end.
+   private static void fifo(final BufferMgr bfr) throws Exception {
+      List<Buffer> held = new ArrayList<Buffer>();
+      for (int n = 0; n < POOL_SIZE; n++)
+         held.add(bfr.pin(new Block("held", n)));
+      final List<Integer> served = new ArrayList<Integer>();
+      final Buffer[] got = new Buffer[WAITERS];
+      Thread[] threads = new Thread[WAITERS];
+      for (int t = 0; t < WAITERS; t++) {
+         final int id = t;
+         threads[t] = new Thread() {
+            public void run() {
+               got[id] = bfr.pin(new Block("waiter", id), 10000);
+               synchronized (served) {
+                  served.add(id);
+                  served.notifyAll();
+               }
+            }
+         };
+         threads[t].start();
+         awaitBlocked(threads[t]);
+         if (!threads[t].isAlive())
+            throw new AssertionError("waiter " + t + " did not wait for a buffer");
+      }
+      for (int t = 0; t < WAITERS; t++) {
+         if (t < POOL_SIZE)
+            bfr.unpin(held.get(t));
+         else
+            bfr.unpin(got[t - POOL_SIZE]);
+         synchronized (served) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (served.size() <= t && System.currentTimeMillis() < deadline)
+               served.wait(100);
+            if (served.size() != t + 1 || served.get(t) != t)
+               throw new AssertionError("after " + (t + 1) + " unpins, waiters served in order " + served);
+         }
+      }
+      for (Thread t : threads)
+         t.join();
+      for (int t = WAITERS - POOL_SIZE; t < WAITERS; t++)
+         bfr.unpin(got[t]);
+      expectAvailable(bfr, POOL_SIZE, "after the waiters");
+   }
+
+   // Each round the driver pins the whole pool and a thread waits for a
+   // buffer with a short timeout; the driver unpins one buffer somewhere
+   // around the deadline. Returns how many waiters got a buffer and how many
+   // gave up.
+   private static int[] timeouts(final BufferMgr bfr, Random r, int rounds) throws Exception {
+      int[] counts = new int[2];
+      for (int round = 0; round < rounds; round++) {
+         List<Buffer> held = new ArrayList<Buffer>();
+         for (int n = 0; n < POOL_SIZE; n++)
+            held.add(bfr.pin(new Block("held", n)));
+         final Buffer[] got = new Buffer[1];
+         final Block blk = new Block("waiter", round % WAITERS);
+         Thread waiter = new Thread() {
+            public void run() {
+               try {
+                  got[0] = bfr.pin(blk, TIMEOUT);
+               }
+               catch (BufferAbortException e) {
+               }
+            }
+         };
+         waiter.start();
+         awaitBlocked(waiter);
+         long delay = r.nextInt((int) TIMEOUT * 2000);
+         Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+         bfr.unpin(held.remove(r.nextInt(POOL_SIZE)));
+         waiter.join();
+         if (got[0] != null) {
+            counts[0]++;
+            if (!blk.equals(got[0].block()))
+               throw new AssertionError("round " + round + ": waiter got " + got[0].block() + ", expected " + blk);
+            bfr.unpin(got[0]);
+         }
+         else
+            counts[1]++;
+         expectAvailable(bfr, 1, "in round " + round + " once the waiter was done");
+         for (Buffer buff : held)
+            bfr.unpin(buff);
+         expectAvailable(bfr, POOL_SIZE, "after round " + round);
+      }
+      return counts;
+   }
+
+   // Waits until the thread is blocked in its pin, or has already given up.
+   // Nothing else contends for the pool, so a waiting thread is in the
+   // queue.
+   private static void awaitBlocked(Thread t) throws InterruptedException {
+      Thread.State s;
+      while ((s = t.getState()) != Thread.State.WAITING && s != Thread.State.TIMED_WAITING
+            && s != Thread.State.TERMINATED)
+         Thread.sleep(1);
+   }
+
+   // A buffer handed to a thread that gave up is passed on away from the
+   // unpinning thread, so the count is given a moment to settle.
+   private static void expectAvailable(BufferMgr bfr, int n, String when) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 1000;
+      while (bfr.available() != n && System.currentTimeMillis() < deadline)
+         Thread.sleep(1);
+      if (bfr.available() != n)
+         throw new AssertionError(bfr.available() + " buffers available " + when + ", expected " + n);
+   }
+}